@@ -22,7 +22,10 @@ import java.nio.channels.SocketChannel;
 import java.net.*;
 import javax.net.ssl.SSLSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -62,6 +65,8 @@ public class Protocol {
     private volatile ResponseInputStream input;
 
     private TraceOutputStream traceOutput;	// the Tracer
+    private Inflater inflater;			// COMPRESS=DEFLATE
+    private Deflater deflater;
     private volatile DataOutputStream output;
 
     private int tagCounter = 0;
@@ -408,6 +413,88 @@ public class Protocol {
 	return responses;
     }
 
+    /**
+     * Send a series of commands to the server without waiting for
+     * the completion of each command, keeping at most <code>window</code>
+     * commands in flight. Untagged responses are passed to the handler
+     * as they arrive. Return the command completion response of each
+     * command, in the order of the commands. If the connection fails,
+     * the BYE response is returned for all commands not completed.
+     *
+     * @param	commands	the commands, without arguments
+     * @param	window	the maximum number of commands in flight
+     * @param	handler	the handler for untagged responses
+     * @return		array of command completion responses
+     */
+    public synchronized Response[] pipeline(List<String> commands,
+				int window, ResponseHandler handler) {
+	Response[] results = new Response[commands.size()];
+	if (socket == null) {
+	    Arrays.fill(results,
+		Response.byeResponse(new SocketException("disconnected")));
+	    return results;
+	}
+	if (window < 1)
+	    window = 1;
+
+	Map<String, Integer> inflight = new HashMap<>();
+	int next = 0;
+	int done = 0;
+	Response byeResp = null;
+	while (done < results.length && byeResp == null) {
+	    // fill the window
+	    while (next < results.length && inflight.size() < window) {
+		commandStart(commands.get(next));
+		try {
+		    inflight.put(writeCommand(commands.get(next), null), next);
+		} catch (LiteralException lex) {
+		    results[next] = lex.getResponse();
+		    done++;
+		} catch (Exception ex) {
+		    // Convert this into a BYE response
+		    byeResp = Response.byeResponse(ex);
+		    break;
+		}
+		next++;
+	    }
+
+	    if (byeResp != null || inflight.isEmpty())
+		continue;
+
+	    Response r;
+	    try {
+		r = readResponse();
+	    } catch (IOException ioex) {
+		byeResp = Response.byeResponse(ioex);
+		break;
+	    } catch (ProtocolException pex) {
+		logger.log(Level.FINE, "ignoring bad response", pex);
+		continue; // skip this response
+	    }
+
+	    if (r.isBYE()) {
+		byeResp = r;
+		break;
+	    }
+
+	    Integer index = (r.isTagged() ? inflight.remove(r.getTag()) : null);
+	    if (index == null)
+		handler.handleResponse(r);
+	    else {
+		results[index] = r;
+		done++;
+		commandEnd();
+	    }
+	}
+
+	if (byeResp != null)
+	    for (int i = 0; i < results.length; i++)
+		if (results[i] == null)
+		    results[i] = byeResp;
+	timestamp = System.currentTimeMillis();
+	return results;
+    }
+
     /**
      * Convenience routine to handle OK, NO, BAD and BYE responses.
      *
@@ -513,6 +600,19 @@ public class Protocol {
 			    socket.getOutputStream(), def, true), traceLogger);
 	traceOutput.setQuote(quote);
 	output = new DataOutputStream(new BufferedOutputStream(traceOutput));
+
+	inflater = inf;
+	deflater = def;
+    }
+
+    /**
+     * Get the number of (uncompressed) bytes received on this connection.
+     *
+     * @return	the number of bytes received
+     */
+    public long getReceived() {
+	TraceInputStream ti = traceInput;
+	return (ti == null ? 0 : ti.getReceived());
     }
 
     /**
@@ -638,6 +738,12 @@ public class Protocol {
 		if (traceInput != null && traceOutput != null)
 			eu.faircode.email.TrafficStatsHelper.report(host, prefix,
 					traceOutput.getSent(), traceInput.getReceived());
+		if (inflater != null && deflater != null) {
+			// Compressed wire bytes versus uncompressed protocol bytes
+			eu.faircode.email.TrafficStatsHelper.compression(host, prefix,
+					deflater.getBytesWritten(), deflater.getBytesRead(),
+					inflater.getBytesRead(), inflater.getBytesWritten());
+		}
 	}
     }
 
@@ -1197,6 +1197,143 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	    fitems = protocol.getFetchItems();
 	}
 
+	boolean allHeaders = (fp.contains(IMAPFolder.FetchProfileItem.HEADERS) ||
+		fp.contains(IMAPFolder.FetchProfileItem.MESSAGE));
+	String[] hdrs = (allHeaders ? null : fp.getHeaderNames());
+	String command = getFetchCommand(fp, isRev1, fitems);
+
+	Utility.Condition condition =
+	    new IMAPMessage.FetchProfileCondition(fp, fitems);
+
+        // Acquire the Folder's MessageCacheLock.
+        synchronized (messageCacheLock) {
+
+	    // check again to make sure folder is still open
+	    checkOpened();
+
+	    // Apply the test, and get the sequence-number set for
+	    // the messages that need to be prefetched.
+	    MessageSet[] msgsets = Utility.toMessageSetSorted(msgs, condition);
+
+	    if (msgsets == null)
+		// We already have what we need.
+		return;
+
+	    Response[] r = null;
+	    // to collect non-FETCH responses & unsolicited FETCH FLAG responses 
+	    List<Response> v = new ArrayList<>();
+	    try {
+		r = getProtocol().fetch(msgsets, command);
+	    } catch (ConnectionException cex) {
+		throw new FolderClosedException(this, cex.getMessage());
+	    } catch (CommandFailedException cfx) {
+		// Ignore these, as per RFC 2180
+	    } catch (ProtocolException pex) { 
+		throw new MessagingException(pex.getMessage(), pex);
+	    }
+
+	    if (r == null)
+		return;
+	   
+	    for (int i = 0; i < r.length; i++)
+		handleFetchResponse(r[i], fp, hdrs, allHeaders, v);
+
+	    // Dispatch any unsolicited responses
+	    if (!v.isEmpty()) {
+		Response[] responses = new Response[v.size()];
+		v.toArray(responses);
+		handleResponses(responses);
+	    }
+
+	} // Release messageCacheLock
+    }
+
+    /**
+     * Prefetch attributes of several batches of messages, based on the
+     * given FetchProfile, keeping at most <code>window</code> FETCH
+     * commands in flight on the connection.
+     *
+     * @param	batches	the batches of messages, one FETCH command each
+     * @param	fp	the FetchProfile
+     * @param	window	the maximum number of commands in flight
+     * @exception	MessagingException for failures
+     */
+    public synchronized void fetch(List<Message[]> batches, FetchProfile fp,
+				int window) throws MessagingException {
+	if (window <= 1 || batches.size() <= 1) {
+	    for (Message[] msgs : batches)
+		fetch(msgs, fp);
+	    return;
+	}
+
+	boolean isRev1;
+	FetchItem[] fitems;
+        synchronized (messageCacheLock) {
+	    checkOpened();
+	    isRev1 = protocol.isREV1();
+	    fitems = protocol.getFetchItems();
+	}
+
+	final boolean allHeaders =
+	    (fp.contains(IMAPFolder.FetchProfileItem.HEADERS) ||
+		fp.contains(IMAPFolder.FetchProfileItem.MESSAGE));
+	final String[] hdrs = (allHeaders ? null : fp.getHeaderNames());
+	String command = getFetchCommand(fp, isRev1, fitems);
+
+	Utility.Condition condition =
+	    new IMAPMessage.FetchProfileCondition(fp, fitems);
+
+        synchronized (messageCacheLock) {
+	    checkOpened();
+
+	    List<String> commands = new ArrayList<>();
+	    for (Message[] msgs : batches) {
+		MessageSet[] msgsets = Utility.toMessageSetSorted(msgs, condition);
+		if (msgsets != null)
+		    commands.add("FETCH " + MessageSet.toString(msgsets) +
+				" (" + command + ")");
+	    }
+	    if (commands.isEmpty())
+		return;
+
+	    // to collect non-FETCH responses & unsolicited FETCH FLAG responses
+	    final List<Response> v = new ArrayList<>();
+	    Response[] r;
+	    try {
+		r = getProtocol().pipeline(commands, window,
+		    new ResponseHandler() {
+			@Override
+			public void handleResponse(Response response) {
+			    handleFetchResponse(response, fp, hdrs,
+						allHeaders, v);
+			}
+		    });
+	    } catch (ProtocolException pex) {
+		throw new MessagingException(pex.getMessage(), pex);
+	    }
+
+	    if (!v.isEmpty()) {
+		Response[] responses = new Response[v.size()];
+		v.toArray(responses);
+		handleResponses(responses);
+	    }
+
+	    for (int i = 0; i < r.length; i++) {
+		if (r[i].isBYE())
+		    throw new FolderClosedException(this, r[i].toString());
+		if (r[i].isBAD())
+		    throw new MessagingException(r[i].toString(),
+				new BadCommandException(r[i]));
+		// NO is ignored, as per RFC 2180
+	    }
+	} // Release messageCacheLock
+    }
+
+    /**
+     * Return the FETCH items for the given FetchProfile.
+     */
+    private String getFetchCommand(FetchProfile fp, boolean isRev1,
+				FetchItem[] fitems) {
 	StringBuilder command = new StringBuilder();
 	boolean first = true;
 	boolean allHeaders = false;
@@ -1265,84 +1402,48 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 		command.append(fitems[i].getName());
 	    }
 	}
+	return command.toString();
+    }
 
-	Utility.Condition condition =
-	    new IMAPMessage.FetchProfileCondition(fp, fitems);
-
-        // Acquire the Folder's MessageCacheLock.
-        synchronized (messageCacheLock) {
-
-	    // check again to make sure folder is still open
-	    checkOpened();
-
-	    // Apply the test, and get the sequence-number set for
-	    // the messages that need to be prefetched.
-	    MessageSet[] msgsets = Utility.toMessageSetSorted(msgs, condition);
-
-	    if (msgsets == null)
-		// We already have what we need.
-		return;
-
-	    Response[] r = null;
-	    // to collect non-FETCH responses & unsolicited FETCH FLAG responses 
-	    List<Response> v = new ArrayList<>();
-	    try {
-		r = getProtocol().fetch(msgsets, command.toString());
-	    } catch (ConnectionException cex) {
-		throw new FolderClosedException(this, cex.getMessage());
-	    } catch (CommandFailedException cfx) {
-		// Ignore these, as per RFC 2180
-	    } catch (ProtocolException pex) { 
-		throw new MessagingException(pex.getMessage(), pex);
-	    }
-
-	    if (r == null)
-		return;
-	   
-	    for (int i = 0; i < r.length; i++) {
-		if (r[i] == null)
-		    continue;
-		if (!(r[i] instanceof FetchResponse)) {
-		    v.add(r[i]); // Unsolicited Non-FETCH response
-		    continue;
-		}
-
-		// Got a FetchResponse.
-		FetchResponse f = (FetchResponse)r[i];
-		// Get the corresponding message.
-		IMAPMessage msg = getMessageBySeqNumber(f.getNumber());
-
-		int count = f.getItemCount();
-		boolean unsolicitedFlags = false;
-
-		for (int j = 0; j < count; j++) {
-		    Item item = f.getItem(j);
-		    // Check for the FLAGS item
-		    if (item instanceof Flags &&
-			    (!fp.contains(FetchProfile.Item.FLAGS) ||
-				msg == null)) {
-			// Ok, Unsolicited FLAGS update.
-			unsolicitedFlags = true;
-		    } else if (msg != null)
-			msg.handleFetchItem(item, hdrs, allHeaders);
-		}
-		if (msg != null)
-		    msg.handleExtensionFetchItems(f.getExtensionItems());
-
-		// If this response contains any unsolicited FLAGS
-		// add it to the unsolicited response vector
-		if (unsolicitedFlags)
-		    v.add(f);
-	    }
+    /**
+     * Apply a FETCH response to the message cache.
+     * Unsolicited responses are added to <code>v</code>.
+     */
+    private void handleFetchResponse(Response r, FetchProfile fp,
+		String[] hdrs, boolean allHeaders, List<Response> v) {
+	if (r == null)
+	    return;
+	if (!(r instanceof FetchResponse)) {
+	    v.add(r); // Unsolicited Non-FETCH response
+	    return;
+	}
 
-	    // Dispatch any unsolicited responses
-	    if (!v.isEmpty()) {
-		Response[] responses = new Response[v.size()];
-		v.toArray(responses);
-		handleResponses(responses);
-	    }
+	// Got a FetchResponse.
+	FetchResponse f = (FetchResponse)r;
+	// Get the corresponding message.
+	IMAPMessage msg = getMessageBySeqNumber(f.getNumber());
+
+	int count = f.getItemCount();
+	boolean unsolicitedFlags = false;
+
+	for (int j = 0; j < count; j++) {
+	    Item item = f.getItem(j);
+	    // Check for the FLAGS item
+	    if (item instanceof Flags &&
+		    (!fp.contains(FetchProfile.Item.FLAGS) ||
+			msg == null)) {
+		// Ok, Unsolicited FLAGS update.
+		unsolicitedFlags = true;
+	    } else if (msg != null)
+		msg.handleFetchItem(item, hdrs, allHeaders);
+	}
+	if (msg != null)
+	    msg.handleExtensionFetchItems(f.getExtensionItems());
 
-	} // Release messageCacheLock
+	// If this response contains any unsolicited FLAGS
+	// add it to the unsolicited response vector
+	if (unsolicitedFlags)
+	    v.add(f);
     }
 
     /**
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 1997, 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package com.sun.mail.imap.protocol;
+
+import com.sun.mail.iap.*;
+
+/**
+ * This class represents the result of an extended SEARCH command,
+ * the ESEARCH response (RFC 4731), including PARTIAL results (RFC 5267).
+ *
+ * A result option which was not requested or not returned
+ * is -1 or null.
+ */
+
+public class ESearchResult {
+
+    public boolean uid = false;
+    public long count = -1;
+    public long min = -1;
+    public long max = -1;
+
+    /**
+     * The matching message numbers or UIDs of the ALL option.
+     */
+    public int[] all = null;
+
+    /**
+     * The requested range and the matching message numbers or UIDs
+     * of the PARTIAL option.
+     */
+    public String range = null;
+    public int[] partial = null;
+
+    /**
+     * Constructor for an empty result.
+     */
+    public ESearchResult() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param	r	the ESEARCH response
+     * @exception	ParsingException	for parsing failures
+     */
+    public ESearchResult(IMAPResponse r) throws ParsingException {
+	// Skip the search correlator (TAG "...")
+	r.skipSpaces();
+	if (r.peekByte() == '(')
+	    r.readSimpleList();
+
+	String name;
+	while ((name = r.readAtom()) != null && name.length() > 0) {
+	    if (name.equalsIgnoreCase("UID"))
+		uid = true;
+	    else if (name.equalsIgnoreCase("COUNT"))
+		count = r.readLong();
+	    else if (name.equalsIgnoreCase("MIN"))
+		min = r.readLong();
+	    else if (name.equalsIgnoreCase("MAX"))
+		max = r.readLong();
+	    else if (name.equalsIgnoreCase("ALL"))
+		all = toArray(r.readAtom());
+	    else if (name.equalsIgnoreCase("PARTIAL")) {
+		if (!r.isNextNonSpace('('))
+		    throw new ParsingException("ESEARCH PARTIAL parse error");
+		range = r.readAtom();
+		String set = r.readAtom();
+		partial = ("NIL".equalsIgnoreCase(set) ? new int[0] : toArray(set));
+		if (!r.isNextNonSpace(')'))
+		    throw new ParsingException("ESEARCH PARTIAL parse error");
+	    } else
+		r.skipToken(); // unknown return data
+	}
+    }
+
+    private static int[] toArray(String set) {
+	long[] values = UIDSet.toArray(UIDSet.parseUIDSets(set));
+	if (values == null)
+	    return new int[0];
+	int[] result = new int[values.length];
+	for (int i = 0; i < values.length; i++)
+	    result[i] = (int) values[i];
+	return result;
+    }
+}
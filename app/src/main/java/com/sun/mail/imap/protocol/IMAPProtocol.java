@@ -2581,6 +2581,49 @@ public class IMAPProtocol extends Protocol {
 	return matches;
     }
 
+    /**
+     * Issue an extended SEARCH command (RFC 4731) with the given
+     * search arguments, returning only the requested result options,
+     * for example "COUNT" or "PARTIAL 1:100" (RFC 5267).
+     * The search arguments should include the message sequence.
+     *
+     * @param	options	the result options
+     * @param	args	the search arguments
+     * @return		the ESEARCH result
+     * @exception	ProtocolException	for protocol failures
+     */
+    public ESearchResult esearch(String options, Argument args)
+			throws ProtocolException {
+	if (!hasCapability("ESEARCH"))
+	    throw new BadCommandException("ESEARCH not supported");
+
+	Response[] r = command("SEARCH RETURN (" + options + ")", args);
+	Response response = r[r.length-1];
+	ESearchResult result = null;
+
+	if (response.isOK()) { // command succesful
+	    for (int i = 0, len = r.length; i < len; i++) {
+		if (!(r[i] instanceof IMAPResponse))
+		    continue;
+
+		IMAPResponse ir = (IMAPResponse)r[i];
+		if (ir.keyEquals("ESEARCH")) {
+		    result = new ESearchResult(ir);
+		    r[i] = null;
+		}
+	    }
+
+	    // No ESEARCH response for no matches
+	    if (result == null)
+		result = new ESearchResult();
+	}
+
+	// dispatch remaining untagged responses
+	notifyResponseHandlers(r);
+	handleResult(response);
+	return result;
+    }
+
     /**
      * Get the SearchSequence object.
      * The SearchSequence object instance is saved in the searchSequence
@@ -672,6 +672,7 @@ public class ActivityEML extends ActivityBase {
                             context, account.getProtocol(), account.realm, account.encryption, account.insecure, true)) {
                         iservice.setPartialFetch(account.partial_fetch);
                         iservice.setIgnoreBodyStructureSize(account.ignore_size);
+                        iservice.setCompress(account.compress);
                         iservice.connect(account);
 
                         IMAPFolder ifolder = (IMAPFolder) iservice.getStore().getFolder(folder.name);
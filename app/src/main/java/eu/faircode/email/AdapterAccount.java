@@ -257,7 +257,8 @@ public class AdapterAccount extends RecyclerView.Adapter<AdapterAccount.ViewHold
                                     " " + account.poll_interval +
                                             "/" + account.keep_alive_ok +
                                             "/" + account.keep_alive_failed +
-                                            "/" + account.keep_alive_succeeded : "")));
+                                            "/" + account.keep_alive_succeeded : "") +
+                            (debug && account.chunk_size != null ? " chunk=" + account.chunk_size : "")));
 
             tvBackoff.setText(context.getString(R.string.title_backoff_until,
                     account.backoff_until == null ? "-" : DTF.format(account.backoff_until)));
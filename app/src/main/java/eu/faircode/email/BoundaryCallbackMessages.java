@@ -34,6 +34,7 @@ import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.ESearchResult;
 import com.sun.mail.imap.protocol.IMAPProtocol;
 import com.sun.mail.imap.protocol.IMAPResponse;
 import com.sun.mail.imap.protocol.SearchSequence;
@@ -100,6 +101,8 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
     private final ExecutorService executor = Helper.getBackgroundExecutor(1, "boundary");
 
     private static final int SEARCH_LIMIT_DEVICE = 1000;
+    private static final int SEARCH_LIMIT_RANKED = 100;
+    private static final int SEARCH_BATCH_DEVICE = 250;
     private static final int SEARCH_LIMIT_SERVER = 250;
 
     interface IBoundaryCallbackMessages {
@@ -220,7 +223,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                             found = load_server(state);
                         }
                     else
-                        found = load_device(state);
+                        found = load_device(state, DB.getInstance(context), null);
                 } catch (final Throwable ex) {
                     state.error = true;
                     Log.e("Boundary", ex);
@@ -252,8 +255,8 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         });
     }
 
-    private int load_device(State state) {
-        DB db = DB.getInstance(context);
+    int load_device(State state, DB db, SQLiteDatabase sdb) {
+        // The search benchmark passes throwaway databases
 
         Log.i("Boundary device" +
                 " index=" + state.index +
@@ -280,118 +283,138 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         int found = 0;
         String query = (criteria.query == null ? null : criteria.query.toLowerCase());
 
-        if (criteria.fts && criteria.query != null) {
-            if (state.ids == null) {
-                SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
-                state.ids = FtsDbHelper.match(sdb, account, folder, exclude, criteria);
-                EntityLog.log(context, "Boundary FTS " +
-                        " account=" + account +
-                        " folder=" + folder +
-                        " criteria=" + criteria +
-                        " ids=" + state.ids.size());
-            }
-
-            List<Long> excluded = Helper.fromLongArray(exclude);
-
-            try {
-                db.beginTransaction();
-
-                for (; state.index < state.ids.size() && found < pageSize && !state.destroyed; state.index++) {
-                    long id = state.ids.get(state.index);
-                    EntityMessage message = db.message().getMessage(id);
-                    if (message == null || message.ui_hide)
-                        continue;
-
-                    if (criteria.with_unseen) {
-                        if (message.ui_seen)
-                            continue;
-                    }
-
-                    if (criteria.with_flagged) {
-                        if (!message.ui_flagged)
-                            continue;
+        // Substrings can be looked up in the trigram index when it covers all criteria
+        if (state.trigram == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            state.trigram = (!criteria.fts &&
+                    prefs.getBoolean("fts", false) &&
+                    prefs.getBoolean("fts_trigram", false) &&
+                    FtsDbHelper.canTrigram(criteria.query) &&
+                    !criteria.in_headers && !criteria.in_html &&
+                    !criteria.with_notes && criteria.with_types == null && criteria.with_size == null);
+        }
+        boolean trigram = state.trigram;
+
+        if ((criteria.fts || trigram) && criteria.query != null) {
+            while (found < pageSize && !state.destroyed) {
+                if (state.ids == null ||
+                        (criteria.fts_ranked && state.index >= state.ids.size() && state.more)) {
+                    // Ranked results are fetched in pages, most relevant first
+                    int offset = (state.ids == null ? 0 : state.ids.size());
+                    int limit = (criteria.fts_ranked ? SEARCH_LIMIT_RANKED : 0);
+                    if (sdb == null)
+                        sdb = FtsDbHelper.getInstance(context);
+                    List<Long> ids = FtsDbHelper.match(sdb, account, folder, exclude, criteria, offset, limit);
+                    int unindexed = 0;
+                    if (trigram && state.ids == null) {
+                        // Messages not indexed yet, like new messages or messages without a body,
+                        // are matched by substring below, like without the index
+                        List<Long> pending = db.message().getMessageUnindexed(
+                                account, folder, exclude, criteria.after, criteria.before);
+                        unindexed = pending.size();
+                        ids.addAll(0, pending);
                     }
+                    if (state.ids == null)
+                        state.ids = ids;
+                    else
+                        state.ids.addAll(ids);
+                    state.more = (limit > 0 && ids.size() == limit);
+                    EntityLog.log(context, "Boundary FTS " +
+                            " trigram=" + trigram +
+                            " account=" + account +
+                            " folder=" + folder +
+                            " criteria=" + criteria +
+                            " offset=" + offset +
+                            " ids=" + ids.size() +
+                            " unindexed=" + unindexed);
+                }
 
-                    if (criteria.with_hidden) {
-                        if (message.ui_snoozed == null)
-                            continue;
-                    }
+                if (state.index >= state.ids.size())
+                    break;
 
-                    if (criteria.with_encrypted) {
-                        if (message.encrypt == null ||
-                                EntityMessage.ENCRYPT_NONE.equals(message.encrypt))
+                try {
+                    db.beginTransaction();
+
+                    // Filter a batch of matches in a single query, keeping the order of the matches
+                    int to = Math.min(state.ids.size(), state.index + SEARCH_BATCH_DEVICE);
+                    Map<Long, EntityMessage> candidates = new HashMap<>();
+                    for (EntityMessage message : db.message().getMessagesForSearch(
+                            state.ids.subList(state.index, to),
+                            criteria.with_unseen,
+                            criteria.with_flagged,
+                            criteria.with_hidden,
+                            criteria.with_encrypted,
+                            criteria.with_attachments,
+                            exclude))
+                        candidates.put(message.id, message);
+
+                    for (; state.index < to && found < pageSize && !state.destroyed; state.index++) {
+                        long id = state.ids.get(state.index);
+                        EntityMessage message = candidates.get(id);
+                        if (message == null)
                             continue;
-                    }
 
-                    if (criteria.with_attachments) {
-                        if (message.attachments == 0)
-                            continue;
-                    }
+                        // The search index matched the selected columns already,
+                        // including senders and recipients separately and the text of attachments
+                        boolean matched = criteria.fts;
 
-                    if (excluded.contains(message.folder))
-                        continue;
+                        if (!matched && criteria.in_senders) {
+                            if (contains(message.from, query))
+                                matched = true;
+                        }
 
-                    boolean matched = false;
+                        if (!matched && criteria.in_recipients) {
+                            if (contains(message.to, query) ||
+                                    contains(message.cc, query) ||
+                                    contains(message.bcc, query))
+                                matched = true;
+                        }
 
-                    if (!matched && criteria.in_senders) {
-                        if (contains(message.from, query))
-                            matched = true;
-                    }
+                        if (!matched && criteria.in_subject) {
+                            if (message.subject != null &&
+                                    message.subject.toLowerCase().contains(query))
+                                matched = true;
+                        }
 
-                    if (!matched && criteria.in_recipients) {
-                        if (contains(message.to, query) ||
-                                contains(message.cc, query) ||
-                                contains(message.bcc, query))
-                            matched = true;
-                    }
+                        if (!matched && criteria.in_keywords) {
+                            if (message.keywords != null)
+                                for (String keyword : message.keywords)
+                                    if (keyword.toLowerCase().contains(query)) {
+                                        matched = true;
+                                        break;
+                                    }
+                        }
 
-                    if (!matched && criteria.in_subject) {
-                        if (message.subject != null &&
-                                message.subject.toLowerCase().contains(query))
-                            matched = true;
-                    }
+                        if (!matched && criteria.in_notes) {
+                            if (message.notes != null &&
+                                    message.notes.toLowerCase().contains(query))
+                                matched = true;
+                        }
 
-                    if (!matched && criteria.in_keywords) {
-                        if (message.keywords != null)
-                            for (String keyword : message.keywords)
-                                if (keyword.toLowerCase().contains(query)) {
+                        if (!matched && criteria.in_message)
+                            try {
+                                String text = HtmlHelper.getFullText(context, id);
+                                if (text != null &&
+                                        text.toLowerCase().contains(query))
                                     matched = true;
-                                    break;
-                                }
-                    }
-
-                    if (!matched && criteria.in_notes) {
-                        if (message.notes != null &&
-                                message.notes.toLowerCase().contains(query))
-                            matched = true;
-                    }
-
-                    if (!matched && criteria.in_message)
-                        try {
-                            File file = EntityMessage.getFile(context, id);
-                            if (file.exists()) {
-                                String html = Helper.readText(file);
-                                if (html.toLowerCase().contains(query)) {
-                                    String text = HtmlHelper.getFullText(html);
-                                    if (text != null &&
-                                            text.toLowerCase().contains(query))
-                                        matched = true;
-                                }
+                            } catch (IOException ex) {
+                                Log.e(ex);
                             }
-                        } catch (IOException ex) {
-                            Log.e(ex);
-                        }
 
-                    if (!matched)
-                        continue;
+                        if (!matched)
+                            continue;
+
+                        found += db.message().setMessageFound(id, true);
+                        if (criteria.fts && criteria.fts_ranked)
+                            db.message().setMessageRank(id, state.index); // list order
+                        Log.i("Boundary matched=" + id + " found=" + found);
+                    }
+                    db.setTransactionSuccessful();
 
-                    found += db.message().setMessageFound(id, true);
-                    Log.i("Boundary matched=" + id + " found=" + found);
+                } finally {
+                    db.endTransaction();
                 }
-                db.setTransactionSuccessful();
 
-            } finally {
-                db.endTransaction();
             }
 
             return found;
@@ -444,18 +467,17 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                 if (query != null) {
                     if (!matched && (criteria.in_message || criteria.in_html))
                         try {
-                            File file = EntityMessage.getFile(context, match.id);
-                            if (file.exists()) {
-                                String html = Helper.readText(file);
-                                if (html.toLowerCase().contains(query)) {
-                                    if (criteria.in_html)
+                            if (criteria.in_html) {
+                                File file = EntityMessage.getFile(context, match.id);
+                                if (file.exists()) {
+                                    String html = Helper.readText(file);
+                                    if (html.toLowerCase().contains(query))
                                         matched = true;
-                                    else {
-                                        String text = HtmlHelper.getFullText(html);
-                                        if (text != null && text.toLowerCase().contains(query))
-                                            matched = true;
-                                    }
                                 }
+                            } else {
+                                String text = HtmlHelper.getFullText(context, match.id);
+                                if (text != null && text.toLowerCase().contains(query))
+                                    matched = true;
                             }
                         } catch (IOException ex) {
                             Log.e(ex);
@@ -504,6 +526,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                         EmailService.PURPOSE_SEARCH, debug || BuildConfig.DEBUG);
                 state.iservice.setPartialFetch(account.partial_fetch);
                 state.iservice.setIgnoreBodyStructureSize(account.ignore_size);
+                state.iservice.setCompress(account.compress);
                 state.iservice.connect(account);
 
                 EntityLog.log(context, "Boundary server opening folder=" + browsable.name);
@@ -650,10 +673,21 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         while (state.index >= 0 && found < pageSize && !state.destroyed) {
             Log.i("Boundary server index=" + state.index);
             int from = Math.max(0, state.index - (pageSize - found) + 1);
+            if (state.partial && state.imessages[from] == null)
+                partial(browsable, state, Math.max(0, Math.min(from, state.index - SEARCH_LIMIT_SERVER + 1)), state.index);
             Message[] isub = Arrays.copyOfRange(state.imessages, from, state.index + 1);
             Arrays.fill(state.imessages, from, state.index + 1, null);
             state.index -= (pageSize - found);
 
+            if (state.partial) {
+                // The search results might have changed in the meantime
+                List<Message> loaded = new ArrayList<>();
+                for (Message m : isub)
+                    if (m != null)
+                        loaded.add(m);
+                isub = loaded.toArray(new Message[0]);
+            }
+
             FetchProfile fp0 = new FetchProfile();
             fp0.add(UIDFolder.FetchProfileItem.UID);
             state.ifolder.fetch(isub, fp0);
@@ -757,6 +791,19 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         Argument args = ss.generateSequence(terms, utf8 ? StandardCharsets.UTF_8.name() : null);
         args.writeAtom("ALL");
 
+        // https://datatracker.ietf.org/doc/html/rfc4731
+        // https://datatracker.ietf.org/doc/html/rfc5267#section-4.4
+        if (protocol.hasCapability("ESEARCH") && protocol.hasCapability("CONTEXT=SEARCH")) {
+            ESearchResult result = protocol.esearch("COUNT", args);
+            int count = (int) Math.max(0, result.count);
+            EntityLog.log(context, "Search partial messages=" + count);
+
+            // Messages will be requested in pages
+            state.partial = true;
+            state.utf8 = utf8;
+            return new Message[count];
+        }
+
         Response[] responses = protocol.command("SEARCH", args); // no CHARSET !
         if (responses == null || responses.length == 0)
             throw new ProtocolException("No response from server");
@@ -783,6 +830,32 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         return imessages;
     }
 
+    private void partial(EntityFolder browsable, State state, int from, int to) throws MessagingException {
+        Log.i("Boundary partial from=" + from + " to=" + to);
+        state.ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                try {
+                    SearchTerm terms = criteria.getTerms(state.utf8, state.ifolder.getPermanentFlags(), browsable.keywords);
+                    SearchSequence ss = new SearchSequence(protocol);
+                    Argument args = ss.generateSequence(terms, state.utf8 ? StandardCharsets.UTF_8.name() : null);
+                    args.writeAtom("ALL");
+
+                    ESearchResult result = protocol.esearch("PARTIAL " + (from + 1) + ":" + (to + 1), args);
+                    int[] msgnums = (result.partial == null ? new int[0] : result.partial);
+                    EntityLog.log(context, "Search partial range=" + result.range + " messages=" + msgnums.length);
+
+                    for (int i = 0; i < msgnums.length && from + i <= to; i++)
+                        state.imessages[from + i] = state.ifolder.getMessage(msgnums[i]);
+
+                    return null;
+                } catch (IOException | MessagingException ex) {
+                    throw new ProtocolException("Search partial " + browsable.name, ex);
+                }
+            }
+        });
+    }
+
     private static boolean contains(Address[] addresses, String text) {
         if (addresses == null)
             return false;
@@ -836,6 +909,10 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         boolean error = false;
         int index = 0;
         int offset = 0;
+        boolean more = false;
+        boolean partial = false;
+        boolean utf8 = false;
+        Boolean trigram = null;
         List<Long> ids = null;
         List<TupleMatch> matches = null;
 
@@ -850,6 +927,10 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             error = false;
             index = 0;
             offset = 0;
+            more = false;
+            partial = false;
+            utf8 = false;
+            trigram = null;
             ids = null;
             matches = null;
             iservice = null;
@@ -864,6 +945,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         long id = -1;
         String query;
         boolean fts = false;
+        boolean fts_ranked = false;
         boolean in_senders = true;
         boolean in_recipients = true;
         boolean in_subject = true;
@@ -1188,6 +1270,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         public String toString() {
             return query +
                     " fts=" + fts +
+                    " ranked=" + fts_ranked +
                     " senders=" + in_senders +
                     " recipients=" + in_recipients +
                     " subject=" + in_subject +
@@ -0,0 +1,119 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Additive increase, multiplicative decrease of the number of UID ranges per UID FETCH
+public class ChunkSizeController {
+    // Folders differ in size and latency, so throughputs are only compared within a folder
+    private static final Map<Long, Float> throughputs = new HashMap<>(); // folder id -> smoothed bytes/ms
+
+    static final int MIN_CHUNK_SIZE = 10; // ranges
+    static final int MAX_CHUNK_SIZE = 1000; // ranges
+    private static final int CHUNK_SIZE_INCREASE = 25; // ranges
+    private static final float CHUNK_SIZE_DECREASE = 0.5f;
+    private static final long MAX_CHUNK_LATENCY = 5 * 1000L; // milliseconds
+    private static final float MIN_THROUGHPUT_FACTOR = 0.5f; // of smoothed throughput
+    private static final float THROUGHPUT_SMOOTHING = 0.25f; // weight of the last measurement
+
+    static int getChunkSize(Context context, EntityAccount account) {
+        // The learned value is cleared when the chunk size option is changed
+        DB db = DB.getInstance(context);
+        account.chunk_size = db.account().getAccountChunkSize(account.id);
+        if (account.chunk_size != null)
+            return account.chunk_size;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int chunk_size = prefs.getInt("chunk_size", Core.DEFAULT_CHUNK_SIZE);
+        if (chunk_size < 200 &&
+                (account.isGmail() || account.isOutlook()))
+            chunk_size = 200;
+        return chunk_size;
+    }
+
+    static void onCompleted(Context context, EntityAccount account, EntityFolder folder,
+                            int chunk_size, int chunks, long bytes, long ms) {
+        if (chunks == 0 || ms <= 0)
+            return;
+
+        long latency = ms / chunks;
+        float throughput = (float) bytes / ms;
+
+        Float previous;
+        synchronized (throughputs) {
+            previous = throughputs.get(folder.id);
+            throughputs.put(folder.id, previous == null
+                    ? throughput
+                    : previous + THROUGHPUT_SMOOTHING * (throughput - previous));
+        }
+
+        int size = chunk_size;
+        if (latency > MAX_CHUNK_LATENCY ||
+                (previous != null && throughput < previous * MIN_THROUGHPUT_FACTOR))
+            size = Math.round(chunk_size * CHUNK_SIZE_DECREASE);
+        else if (chunks > 1)
+            // A single chunk did not limit the number of ranges
+            size = chunk_size + CHUNK_SIZE_INCREASE;
+
+        update(context, account, chunk_size, size,
+                folder.name + " chunks=" + chunks + " latency=" + latency + " ms" +
+                        " throughput=" + Math.round(throughput * 1000) + " bytes/s");
+    }
+
+    static void onFailed(Context context, EntityAccount account, EntityFolder folder, int chunk_size) {
+        synchronized (throughputs) {
+            throughputs.remove(folder.id);
+        }
+        update(context, account, chunk_size, Math.round(chunk_size * CHUNK_SIZE_DECREASE),
+                folder.name + " failed");
+    }
+
+    static void reset(Context context) {
+        synchronized (throughputs) {
+            throughputs.clear();
+        }
+        DB db = DB.getInstance(context);
+        int count = db.account().resetAccountChunkSize();
+        Log.i("Chunk size reset accounts=" + count);
+    }
+
+    private static void update(Context context, EntityAccount account, int chunk_size, int size, String reason) {
+        size = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+        if (account.chunk_size != null && account.chunk_size == size)
+            return;
+
+        // Do not overwrite a reset while synchronizing
+        DB db = DB.getInstance(context);
+        if (db.account().setAccountChunkSize(account.id, account.chunk_size, size) == 0)
+            return;
+        account.chunk_size = size;
+
+        if (size != chunk_size)
+            EntityLog.log(context, EntityLog.Type.Statistics, account,
+                    account.name + " chunk size " + chunk_size + " > " + size + " " + reason);
+    }
+}
@@ -0,0 +1,247 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append only log of the changes to a classifier snapshot
+// Header: int magic, int version, long snapshot generation
+// Entry: int length, int CRC32, byte type, long account, ...
+public class ClassifierJournal {
+    private final File file;
+    private FileOutputStream os = null;
+    private long size = 0;
+
+    private static final int MAGIC = 0x4645434a; // FECJ
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024; // bytes
+
+    private static final byte TYPE_UPDATE = 1;
+    private static final byte TYPE_REMOVE_CLASS = 2;
+    private static final byte TYPE_REMOVE_MSGID = 3;
+
+    interface IReplay {
+        void onUpdate(long account, String clazz, boolean added, List<String> words);
+
+        void onRemoveClass(long account, String clazz);
+
+        void onRemoveMsgId(long account, String msgid);
+    }
+
+    ClassifierJournal(File file) {
+        this.file = file;
+    }
+
+    // Returns the number of replayed entries
+    int replay(long generation, IReplay replay) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        int count = 0;
+        long valid = HEADER_SIZE;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION || is.readLong() != generation) {
+                // Already compacted into the snapshot
+                Log.i("Classifier journal outdated");
+                valid = 0;
+            } else
+                while (true) {
+                    byte[] entry;
+                    try {
+                        int length = is.readInt();
+                        int crc = is.readInt();
+                        if (length <= 0 || length > MAX_ENTRY_SIZE)
+                            throw new IOException("Classifier journal length=" + length);
+                        entry = new byte[length];
+                        is.readFully(entry);
+                        CRC32 crc32 = new CRC32();
+                        crc32.update(entry);
+                        if ((int) crc32.getValue() != crc)
+                            throw new IOException("Classifier journal CRC");
+                    } catch (EOFException ex) {
+                        break;
+                    } catch (IOException ex) {
+                        // Partially written entry
+                        Log.w(ex);
+                        break;
+                    }
+
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(entry));
+                    byte type = data.readByte();
+                    long account = data.readLong();
+                    switch (type) {
+                        case TYPE_UPDATE:
+                            String clazz = data.readUTF();
+                            boolean added = data.readBoolean();
+                            int n = data.readInt();
+                            List<String> words = new ArrayList<>(n);
+                            for (int i = 0; i < n; i++)
+                                words.add(data.readBoolean() ? data.readUTF() : null);
+                            replay.onUpdate(account, clazz, added, words);
+                            break;
+                        case TYPE_REMOVE_CLASS:
+                            replay.onRemoveClass(account, data.readUTF());
+                            break;
+                        case TYPE_REMOVE_MSGID:
+                            replay.onRemoveMsgId(account, data.readUTF());
+                            break;
+                        default:
+                            throw new IOException("Classifier journal type=" + type);
+                    }
+
+                    valid += 8 + entry.length;
+                    count++;
+                }
+        } catch (EOFException ex) {
+            // Partially written header
+            Log.w(ex);
+            valid = 0;
+        }
+
+        // Drop a partially written entry
+        if (valid < file.length())
+            if (valid == 0)
+                file.delete();
+            else
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+
+        return count;
+    }
+
+    void open(long generation) throws IOException {
+        close();
+        boolean append = (file.exists() && file.length() >= HEADER_SIZE);
+        if (append)
+            try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+                append = (is.readInt() == MAGIC && is.readInt() == VERSION && is.readLong() == generation);
+            }
+
+        os = new FileOutputStream(file, append);
+        if (append)
+            size = file.length();
+        else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bos);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(generation);
+            os.write(bos.toByteArray());
+            os.getFD().sync();
+            size = HEADER_SIZE;
+        }
+    }
+
+    boolean isOpen() {
+        return (os != null);
+    }
+
+    void update(long account, String clazz, boolean added, List<String> words) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bos);
+        data.writeByte(TYPE_UPDATE);
+        data.writeLong(account);
+        data.writeUTF(clazz);
+        data.writeBoolean(added);
+        data.writeInt(words.size());
+        for (String word : words) {
+            data.writeBoolean(word != null);
+            if (word != null)
+                data.writeUTF(word);
+        }
+        write(bos.toByteArray());
+    }
+
+    void removeClass(long account, String clazz) throws IOException {
+        write(TYPE_REMOVE_CLASS, account, clazz);
+    }
+
+    void removeMsgId(long account, String msgid) throws IOException {
+        write(TYPE_REMOVE_MSGID, account, msgid);
+    }
+
+    private void write(byte type, long account, String value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bos);
+        data.writeByte(type);
+        data.writeLong(account);
+        data.writeUTF(value);
+        write(bos.toByteArray());
+    }
+
+    private void write(byte[] entry) throws IOException {
+        if (os == null)
+            throw new IOException("Classifier journal closed");
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(entry);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(8 + entry.length);
+        DataOutputStream frame = new DataOutputStream(bos);
+        frame.writeInt(entry.length);
+        frame.writeInt((int) crc32.getValue());
+        frame.write(entry);
+
+        // Single write, synced on save
+        os.write(bos.toByteArray());
+        size += bos.size();
+    }
+
+    void sync() throws IOException {
+        if (os != null)
+            os.getFD().sync();
+    }
+
+    long size() {
+        return size;
+    }
+
+    void close() {
+        if (os != null)
+            try {
+                os.close();
+            } catch (IOException ex) {
+                Log.w(ex);
+            } finally {
+                os = null;
+                size = 0;
+            }
+    }
+
+    void delete() {
+        close();
+        file.delete();
+    }
+}
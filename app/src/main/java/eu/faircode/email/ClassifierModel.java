@@ -0,0 +1,441 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Set;
+
+// Word frequencies of one account, or the changes to a snapshot of them
+// Words and class names are interned into ids,
+// the word/class records are kept in parallel arrays
+// and looked up with open addressing on the combined ids
+public class ClassifierModel implements ClassifierReader {
+    private String[] strings = new String[64];
+    private int[] stringSlots = new int[128]; // string id + 1
+    private int stringCount = 0;
+
+    private int[] classes = new int[0];
+
+    private int[] recordWord = new int[64];
+    private int[] recordClass = new int[64];
+    private int[] recordCount = new int[64];
+    private int[] recordDuplicates = new int[64];
+    private Counts[] recordBefore = new Counts[64];
+    private Counts[] recordAfter = new Counts[64];
+    private int[] recordSlots = new int[128]; // record + 1
+    private int records = 0;
+
+    static final int NONE = Integer.MIN_VALUE;
+
+    @Override
+    public int getId(String s) {
+        int mask = stringSlots.length - 1;
+        for (int i = hash(s.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int slot = stringSlots[i];
+            if (slot == 0)
+                return -1;
+            if (strings[slot - 1].equals(s))
+                return slot - 1;
+        }
+    }
+
+    int intern(String s) {
+        int id = getId(s);
+        if (id >= 0)
+            return id;
+
+        if (stringCount == strings.length)
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        id = stringCount++;
+        strings[id] = s;
+
+        if (stringCount * 2 > stringSlots.length) {
+            stringSlots = new int[stringSlots.length * 2];
+            for (int i = 0; i < stringCount; i++)
+                putString(i);
+        } else
+            putString(id);
+
+        return id;
+    }
+
+    private void putString(int id) {
+        int mask = stringSlots.length - 1;
+        int i = hash(strings[id].hashCode()) & mask;
+        while (stringSlots[i] != 0)
+            i = (i + 1) & mask;
+        stringSlots[i] = id + 1;
+    }
+
+    @Override
+    public String getString(int id) {
+        return strings[id];
+    }
+
+    int getStringCount() {
+        return stringCount;
+    }
+
+    @Override
+    public int[] getClasses() {
+        // Replaced on change, so it can be iterated while adding records
+        return classes;
+    }
+
+    int size() {
+        return records;
+    }
+
+    @Override
+    public int find(int word, int clazz) {
+        int mask = recordSlots.length - 1;
+        for (int i = hash(word, clazz) & mask; ; i = (i + 1) & mask) {
+            int slot = recordSlots[i];
+            if (slot == 0)
+                return -1;
+            if (recordWord[slot - 1] == word && recordClass[slot - 1] == clazz)
+                return slot - 1;
+        }
+    }
+
+    int create(int word, int clazz) {
+        int record = find(word, clazz);
+        if (record >= 0)
+            return record;
+
+        if (records == recordWord.length) {
+            int length = records * 2;
+            recordWord = Arrays.copyOf(recordWord, length);
+            recordClass = Arrays.copyOf(recordClass, length);
+            recordCount = Arrays.copyOf(recordCount, length);
+            recordDuplicates = Arrays.copyOf(recordDuplicates, length);
+            recordBefore = Arrays.copyOf(recordBefore, length);
+            recordAfter = Arrays.copyOf(recordAfter, length);
+        }
+
+        record = records++;
+        recordWord[record] = word;
+        recordClass[record] = clazz;
+        recordCount[record] = 0;
+        recordDuplicates[record] = 0;
+        recordBefore[record] = null;
+        recordAfter[record] = null;
+
+        if (records * 2 > recordSlots.length)
+            rehash(recordSlots.length * 2);
+        else
+            putRecord(record);
+
+        boolean known = false;
+        for (int c : classes)
+            if (c == clazz) {
+                known = true;
+                break;
+            }
+        if (!known) {
+            int[] copy = Arrays.copyOf(classes, classes.length + 1);
+            copy[classes.length] = clazz;
+            classes = copy;
+        }
+
+        return record;
+    }
+
+    private void putRecord(int record) {
+        int mask = recordSlots.length - 1;
+        int i = hash(recordWord[record], recordClass[record]) & mask;
+        while (recordSlots[i] != 0)
+            i = (i + 1) & mask;
+        recordSlots[i] = record + 1;
+    }
+
+    private void rehash(int capacity) {
+        recordSlots = new int[capacity];
+        for (int r = 0; r < records; r++)
+            putRecord(r);
+    }
+
+    int getWord(int record) {
+        return recordWord[record];
+    }
+
+    int getClass(int record) {
+        return recordClass[record];
+    }
+
+    @Override
+    public int getCount(int record) {
+        return recordCount[record];
+    }
+
+    @Override
+    public int getDuplicates(int record) {
+        return recordDuplicates[record];
+    }
+
+    @Override
+    public int getBefore(int record, int word) {
+        Counts counts = recordBefore[record];
+        return (counts == null || word < 0 ? NONE : counts.get(word));
+    }
+
+    @Override
+    public int getAfter(int record, int word) {
+        Counts counts = recordAfter[record];
+        return (counts == null || word < 0 ? NONE : counts.get(word));
+    }
+
+    Counts getBefore(int record) {
+        return recordBefore[record];
+    }
+
+    Counts getAfter(int record) {
+        return recordAfter[record];
+    }
+
+    void set(int record, int count, int duplicates) {
+        recordCount[record] = count;
+        recordDuplicates[record] = duplicates;
+    }
+
+    void addBefore(int record, int word, int count) {
+        if (recordBefore[record] == null)
+            recordBefore[record] = new Counts();
+        recordBefore[record].add(word, count);
+    }
+
+    void addAfter(int record, int word, int count) {
+        if (recordAfter[record] == null)
+            recordAfter[record] = new Counts();
+        recordAfter[record].add(word, count);
+    }
+
+    void add(int record, int before, int after, int c, boolean duplicate, int base) {
+        // base: count of the record in the snapshot
+        if (base + recordCount[record] + c < 0)
+            return;
+
+        recordCount[record] += c;
+
+        if (duplicate)
+            recordDuplicates[record] += c;
+
+        if (before >= 0)
+            addBefore(record, before, c);
+
+        if (after >= 0)
+            addAfter(record, after, c);
+    }
+
+    void addAll(ClassifierSnapshot.Section section, Set<String> removed) {
+        int[] ids = new int[section.getStringCount()];
+        Arrays.fill(ids, -1);
+
+        boolean[] skip = new boolean[section.getStringCount()];
+        for (int clazz : section.getClasses())
+            skip[clazz] = (removed != null && removed.contains(section.getString(clazz)));
+
+        for (int r = 0; r < section.size(); r++) {
+            int clazz = section.getClass(r);
+            if (skip[clazz])
+                continue;
+
+            int record = create(map(section, ids, section.getWord(r)), map(section, ids, clazz));
+            recordCount[record] += section.getCount(r);
+            recordDuplicates[record] += section.getDuplicates(r);
+
+            int start = section.getBeforeStart(r);
+            for (int i = start; i < start + section.getBeforeLength(r); i++)
+                addBefore(record, map(section, ids, section.getContextWord(i)), section.getContextCount(i));
+
+            start = section.getAfterStart(r);
+            for (int i = start; i < start + section.getAfterLength(r); i++)
+                addAfter(record, map(section, ids, section.getContextWord(i)), section.getContextCount(i));
+        }
+    }
+
+    private int map(ClassifierSnapshot.Section section, int[] ids, int id) {
+        if (ids[id] < 0)
+            ids[id] = intern(section.getString(id));
+        return ids[id];
+    }
+
+    void addAll(ClassifierModel model, Set<String> removed) {
+        int[] ids = new int[model.stringCount];
+        for (int i = 0; i < model.stringCount; i++)
+            ids[i] = intern(model.strings[i]);
+
+        boolean[] skip = new boolean[model.stringCount];
+        for (int clazz : model.classes)
+            skip[clazz] = (removed != null && removed.contains(model.strings[clazz]));
+
+        for (int r = 0; r < model.records; r++) {
+            if (skip[model.recordClass[r]])
+                continue;
+
+            int record = create(ids[model.recordWord[r]], ids[model.recordClass[r]]);
+            recordCount[record] += model.recordCount[r];
+            recordDuplicates[record] += model.recordDuplicates[r];
+
+            Counts before = model.recordBefore[r];
+            if (before != null)
+                for (long slot : before.getSlots())
+                    if (slot != 0)
+                        addBefore(record, ids[Counts.getKey(slot)], Counts.getValue(slot));
+
+            Counts after = model.recordAfter[r];
+            if (after != null)
+                for (long slot : after.getSlots())
+                    if (slot != 0)
+                        addAfter(record, ids[Counts.getKey(slot)], Counts.getValue(slot));
+        }
+    }
+
+    void removeClass(int clazz) {
+        int r = 0;
+        for (int i = 0; i < records; i++)
+            if (recordClass[i] != clazz) {
+                recordWord[r] = recordWord[i];
+                recordClass[r] = recordClass[i];
+                recordCount[r] = recordCount[i];
+                recordDuplicates[r] = recordDuplicates[i];
+                recordBefore[r] = recordBefore[i];
+                recordAfter[r] = recordAfter[i];
+                r++;
+            }
+        for (int i = r; i < records; i++) {
+            recordBefore[i] = null;
+            recordAfter[i] = null;
+        }
+        records = r;
+        rehash(recordSlots.length);
+
+        int[] copy = new int[classes.length];
+        int n = 0;
+        for (int c : classes)
+            if (c != clazz)
+                copy[n++] = c;
+        classes = Arrays.copyOf(copy, n);
+    }
+
+    long getMemoryUsage() {
+        // Estimated for compressed references: 12 bytes array header, 4 bytes per reference
+        long size = 16 + 4L * strings.length + 4L * stringSlots.length;
+        for (int i = 0; i < stringCount; i++)
+            size += 24 + 16 + strings[i].length(); // String and its compact byte array
+        size += 16 + 4L * classes.length;
+        size += 16L * 6 + recordWord.length * (4L * 4 + 4L * 2) + 4L * recordSlots.length;
+        for (int r = 0; r < records; r++) {
+            if (recordBefore[r] != null)
+                size += recordBefore[r].getMemoryUsage();
+            if (recordAfter[r] != null)
+                size += recordAfter[r].getMemoryUsage();
+        }
+        return size;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "words=" + stringCount +
+                " classes=" + classes.length +
+                " records=" + records +
+                " memory=" + Helper.humanReadableByteCount(getMemoryUsage());
+    }
+
+    private static int hash(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(int word, int clazz) {
+        return hash(word * 31 + clazz);
+    }
+
+    // Word id to count, packed as (word + 1) << 32 | count
+    static class Counts {
+        private long[] slots = new long[4];
+        private int size = 0;
+
+        int get(int word) {
+            int mask = slots.length - 1;
+            for (int i = hash(word) & mask; ; i = (i + 1) & mask) {
+                long slot = slots[i];
+                if (slot == 0)
+                    return NONE;
+                if (getKey(slot) == word)
+                    return getValue(slot);
+            }
+        }
+
+        void add(int word, int count) {
+            int mask = slots.length - 1;
+            int i = hash(word) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask)
+                if (getKey(slots[i]) == word) {
+                    slots[i] = pack(word, getValue(slots[i]) + count);
+                    return;
+                }
+
+            slots[i] = pack(word, count);
+            size++;
+
+            if (size * 4 > slots.length * 3) {
+                long[] old = slots;
+                slots = new long[old.length * 2];
+                mask = slots.length - 1;
+                for (long slot : old)
+                    if (slot != 0) {
+                        int j = hash(getKey(slot)) & mask;
+                        while (slots[j] != 0)
+                            j = (j + 1) & mask;
+                        slots[j] = slot;
+                    }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Iterate with: for (long slot : getSlots()) if (slot != 0) ...
+        long[] getSlots() {
+            return slots;
+        }
+
+        long getMemoryUsage() {
+            return 16 + 16 + 8L * slots.length;
+        }
+
+        static int getKey(long slot) {
+            return (int) (slot >>> 32) - 1;
+        }
+
+        static int getValue(long slot) {
+            return (int) slot;
+        }
+
+        private static long pack(int word, int count) {
+            return ((long) (word + 1) << 32) | (count & 0xffffffffL);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Read only, memory mapped classifier data
+// File:
+//   int magic, int version, long generation, int accounts
+//   accounts x (long account, int section offset)
+// Section:
+//   int strings, int classes, int messages, int msgids, int records, int contexts
+//   string index: strings x (int offset, int length), sorted by UTF-8 bytes
+//   string data: UTF-8 bytes
+//   classes: classes x (int string)
+//   messages: messages x (int class string, int count)
+//   msgids: msgids x (int string)
+//   records: records x (int word, int class, int count, int duplicates,
+//     int before, int before length, int after, int after length), sorted by word, class
+//   contexts: contexts x (int word, int count), sorted by word per record
+// All offsets are absolute, all values big endian
+public class ClassifierSnapshot {
+    private final ByteBuffer buffer;
+    private final long generation;
+    private final Map<Long, Section> sections = new HashMap<>();
+
+    private static final int MAGIC = 0x46454331; // FEC1
+    private static final int VERSION = 1;
+    private static final int SECTION_HEADER = 6 * 4;
+    private static final int STRING_SIZE = 2 * 4;
+    private static final int MESSAGE_SIZE = 2 * 4;
+    private static final int RECORD_SIZE = 8 * 4;
+    private static final int CONTEXT_SIZE = 2 * 4;
+
+    private ClassifierSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException("Classifier snapshot invalid");
+        int version = buffer.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Classifier snapshot version=" + version);
+        this.generation = buffer.getLong(8);
+
+        int accounts = buffer.getInt(16);
+        for (int i = 0; i < accounts; i++) {
+            long account = buffer.getLong(20 + i * 12);
+            int offset = buffer.getInt(20 + i * 12 + 8);
+            sections.put(account, new Section(buffer, offset));
+        }
+    }
+
+    static ClassifierSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // The mapping remains valid after closing the channel
+            return new ClassifierSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    Set<Long> getAccounts() {
+        return sections.keySet();
+    }
+
+    Section getSection(long account) {
+        return sections.get(account);
+    }
+
+    long size() {
+        return buffer.capacity();
+    }
+
+    static void write(
+            File file,
+            long generation,
+            Set<Long> accounts,
+            Map<Long, Map<String, Integer>> classMessages,
+            Map<Long, ClassifierModel> models,
+            Map<Long, List<String>> accountMsgIds) throws IOException {
+        List<Long> list = new ArrayList<>(accounts);
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeLong(generation);
+            os.writeInt(list.size());
+
+            List<Builder> builders = new ArrayList<>();
+            int offset = 20 + list.size() * 12;
+            for (long account : list) {
+                ClassifierModel model = models.get(account);
+                Builder builder = new Builder(
+                        model == null ? new ClassifierModel() : model,
+                        classMessages.get(account),
+                        accountMsgIds.get(account),
+                        offset);
+                builders.add(builder);
+
+                os.writeLong(account);
+                os.writeInt(offset);
+                offset += builder.size();
+            }
+
+            for (Builder builder : builders)
+                builder.write(os);
+        }
+    }
+
+    static class Section implements ClassifierReader {
+        private final ByteBuffer buffer;
+        private final int strings;
+        private final int classes;
+        private final int messages;
+        private final int msgids;
+        private final int records;
+        private final int contexts;
+        private final int stringIndex;
+        private final int classIndex;
+        private final int messageIndex;
+        private final int msgidIndex;
+        private final int recordIndex;
+        private final int contextIndex;
+
+        private Section(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.strings = buffer.getInt(offset);
+            this.classes = buffer.getInt(offset + 4);
+            this.messages = buffer.getInt(offset + 8);
+            this.msgids = buffer.getInt(offset + 12);
+            this.records = buffer.getInt(offset + 16);
+            this.contexts = buffer.getInt(offset + 20);
+
+            this.stringIndex = offset + SECTION_HEADER;
+            int data = stringIndex + strings * STRING_SIZE;
+            int length = 0;
+            if (strings > 0) {
+                int last = stringIndex + (strings - 1) * STRING_SIZE;
+                length = buffer.getInt(last) + buffer.getInt(last + 4) - data;
+            }
+            this.classIndex = data + length;
+            this.messageIndex = classIndex + classes * 4;
+            this.msgidIndex = messageIndex + messages * MESSAGE_SIZE;
+            this.recordIndex = msgidIndex + msgids * 4;
+            this.contextIndex = recordIndex + records * RECORD_SIZE;
+        }
+
+        int getStringCount() {
+            return strings;
+        }
+
+        @Override
+        public int getId(String s) {
+            byte[] key = s.getBytes(StandardCharsets.UTF_8);
+            int lo = 0;
+            int hi = strings - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(mid, key);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private int compare(int id, byte[] key) {
+            int offset = buffer.getInt(stringIndex + id * STRING_SIZE);
+            int length = buffer.getInt(stringIndex + id * STRING_SIZE + 4);
+            for (int i = 0; i < length && i < key.length; i++) {
+                int c = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+                if (c != 0)
+                    return c;
+            }
+            return length - key.length;
+        }
+
+        @Override
+        public String getString(int id) {
+            int offset = buffer.getInt(stringIndex + id * STRING_SIZE);
+            int length = buffer.getInt(stringIndex + id * STRING_SIZE + 4);
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = buffer.get(offset + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int[] getClasses() {
+            int[] result = new int[classes];
+            for (int i = 0; i < classes; i++)
+                result[i] = buffer.getInt(classIndex + i * 4);
+            return result;
+        }
+
+        Map<String, Integer> getMessages() {
+            Map<String, Integer> result = new HashMap<>();
+            for (int i = 0; i < messages; i++)
+                result.put(getString(buffer.getInt(messageIndex + i * MESSAGE_SIZE)),
+                        buffer.getInt(messageIndex + i * MESSAGE_SIZE + 4));
+            return result;
+        }
+
+        List<String> getMsgIds() {
+            List<String> result = new ArrayList<>(msgids);
+            for (int i = 0; i < msgids; i++)
+                result.add(getString(buffer.getInt(msgidIndex + i * 4)));
+            return result;
+        }
+
+        int size() {
+            return records;
+        }
+
+        @Override
+        public int find(int word, int clazz) {
+            int lo = 0;
+            int hi = records - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int offset = recordIndex + mid * RECORD_SIZE;
+                int w = buffer.getInt(offset);
+                int c = (w == word ? Integer.compare(buffer.getInt(offset + 4), clazz) : Integer.compare(w, word));
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        int getWord(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE);
+        }
+
+        int getClass(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 4);
+        }
+
+        @Override
+        public int getCount(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 8);
+        }
+
+        @Override
+        public int getDuplicates(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 12);
+        }
+
+        @Override
+        public int getBefore(int record, int word) {
+            int offset = recordIndex + record * RECORD_SIZE + 16;
+            return getContext(buffer.getInt(offset), buffer.getInt(offset + 4), word);
+        }
+
+        @Override
+        public int getAfter(int record, int word) {
+            int offset = recordIndex + record * RECORD_SIZE + 24;
+            return getContext(buffer.getInt(offset), buffer.getInt(offset + 4), word);
+        }
+
+        // Context entries: start, start + length
+        int getBeforeStart(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 16);
+        }
+
+        int getBeforeLength(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 20);
+        }
+
+        int getAfterStart(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 24);
+        }
+
+        int getAfterLength(int record) {
+            return buffer.getInt(recordIndex + record * RECORD_SIZE + 28);
+        }
+
+        int getContextWord(int context) {
+            return buffer.getInt(contextIndex + context * CONTEXT_SIZE);
+        }
+
+        int getContextCount(int context) {
+            return buffer.getInt(contextIndex + context * CONTEXT_SIZE + 4);
+        }
+
+        private int getContext(int start, int length, int word) {
+            if (word < 0)
+                return ClassifierModel.NONE;
+            int lo = start;
+            int hi = start + length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int w = getContextWord(mid);
+                if (w < word)
+                    lo = mid + 1;
+                else if (w > word)
+                    hi = mid - 1;
+                else
+                    return getContextCount(mid);
+            }
+            return ClassifierModel.NONE;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "strings=" + strings +
+                    " classes=" + classes +
+                    " records=" + records +
+                    " contexts=" + contexts;
+        }
+    }
+
+    private static class Builder {
+        private final ClassifierModel model;
+        private final int offset;
+        private final byte[][] strings;
+        private final int[] ids; // model id > snapshot id
+        private final int[] classes;
+        private final int[] messages;
+        private final int[] msgids;
+        private final long[] records; // snapshot word << 32 | snapshot class
+        private final int contexts;
+        private int data = 0;
+
+        Builder(ClassifierModel model, Map<String, Integer> classMessages, List<String> accountMsgIds, int offset) {
+            this.model = model;
+            this.offset = offset;
+
+            if (classMessages != null)
+                for (String clazz : classMessages.keySet())
+                    model.intern(clazz);
+            if (accountMsgIds != null)
+                for (String msgid : accountMsgIds)
+                    model.intern(msgid);
+
+            // Sort strings by their UTF-8 bytes
+            int count = model.getStringCount();
+            List<Integer> order = new ArrayList<>(count);
+            final byte[][] bytes = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                order.add(i);
+                bytes[i] = model.getString(i).getBytes(StandardCharsets.UTF_8);
+                data += bytes[i].length;
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    byte[] b1 = bytes[i1];
+                    byte[] b2 = bytes[i2];
+                    for (int i = 0; i < b1.length && i < b2.length; i++) {
+                        int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+                        if (c != 0)
+                            return c;
+                    }
+                    return b1.length - b2.length;
+                }
+            });
+
+            strings = new byte[count][];
+            ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                strings[i] = bytes[order.get(i)];
+                ids[order.get(i)] = i;
+            }
+
+            int[] modelClasses = model.getClasses();
+            classes = new int[modelClasses.length];
+            for (int i = 0; i < modelClasses.length; i++)
+                classes[i] = ids[modelClasses[i]];
+
+            List<String> names = (classMessages == null ? new ArrayList<>() : new ArrayList<>(classMessages.keySet()));
+            messages = new int[names.size() * 2];
+            for (int i = 0; i < names.size(); i++) {
+                messages[i * 2] = ids[model.getId(names.get(i))];
+                messages[i * 2 + 1] = classMessages.get(names.get(i));
+            }
+
+            msgids = new int[accountMsgIds == null ? 0 : accountMsgIds.size()];
+            for (int i = 0; i < msgids.length; i++)
+                msgids[i] = ids[model.getId(accountMsgIds.get(i))];
+
+            int c = 0;
+            records = new long[model.size()];
+            for (int r = 0; r < records.length; r++) {
+                records[r] = ((long) ids[model.getWord(r)] << 32) | ids[model.getClass(r)];
+                ClassifierModel.Counts before = model.getBefore(r);
+                ClassifierModel.Counts after = model.getAfter(r);
+                c += (before == null ? 0 : before.size()) + (after == null ? 0 : after.size());
+            }
+            Arrays.sort(records);
+            contexts = c;
+        }
+
+        int size() {
+            return SECTION_HEADER +
+                    strings.length * STRING_SIZE + data +
+                    classes.length * 4 +
+                    messages.length * 4 +
+                    msgids.length * 4 +
+                    records.length * RECORD_SIZE +
+                    contexts * CONTEXT_SIZE;
+        }
+
+        void write(DataOutputStream os) throws IOException {
+            os.writeInt(strings.length);
+            os.writeInt(classes.length);
+            os.writeInt(messages.length / 2);
+            os.writeInt(msgids.length);
+            os.writeInt(records.length);
+            os.writeInt(contexts);
+
+            int pos = offset + SECTION_HEADER + strings.length * STRING_SIZE;
+            for (byte[] string : strings) {
+                os.writeInt(pos);
+                os.writeInt(string.length);
+                pos += string.length;
+            }
+            for (byte[] string : strings)
+                os.write(string);
+
+            for (int clazz : classes)
+                os.writeInt(clazz);
+            for (int message : messages)
+                os.writeInt(message);
+            for (int msgid : msgids)
+                os.writeInt(msgid);
+
+            // Snapshot id > model id
+            int[] rids = new int[ids.length];
+            for (int i = 0; i < ids.length; i++)
+                rids[ids[i]] = i;
+
+            int context = 0;
+            List<long[]> packed = new ArrayList<>(records.length * 2);
+            for (long key : records) {
+                int word = (int) (key >>> 32);
+                int clazz = (int) key;
+                int r = model.find(rids[word], rids[clazz]);
+
+                long[] before = pack(model.getBefore(r));
+                long[] after = pack(model.getAfter(r));
+                packed.add(before);
+                packed.add(after);
+
+                os.writeInt(word);
+                os.writeInt(clazz);
+                os.writeInt(model.getCount(r));
+                os.writeInt(model.getDuplicates(r));
+                os.writeInt(context);
+                os.writeInt(before.length);
+                context += before.length;
+                os.writeInt(context);
+                os.writeInt(after.length);
+                context += after.length;
+            }
+
+            for (long[] entries : packed)
+                for (long entry : entries) {
+                    os.writeInt((int) (entry >>> 32));
+                    os.writeInt((int) entry);
+                }
+        }
+
+        private long[] pack(ClassifierModel.Counts counts) {
+            if (counts == null)
+                return new long[0];
+            long[] result = new long[counts.size()];
+            int i = 0;
+            for (long slot : counts.getSlots())
+                if (slot != 0)
+                    result[i++] = ((long) ids[ClassifierModel.Counts.getKey(slot)] << 32) |
+                            (ClassifierModel.Counts.getValue(slot) & 0xffffffffL);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
@@ -60,13 +60,18 @@ import com.sun.mail.iap.CommandFailedException;
 import com.sun.mail.iap.ConnectionException;
 import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
+import com.sun.mail.iap.ResponseHandler;
 import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.imap.protocol.FLAGS;
 import com.sun.mail.imap.protocol.FetchResponse;
 import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
 import com.sun.mail.imap.protocol.UID;
 import com.sun.mail.imap.protocol.UIDSet;
 import com.sun.mail.pop3.POP3Folder;
@@ -99,12 +104,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -122,6 +130,8 @@ import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.StoreClosedException;
 import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -139,12 +149,15 @@ import me.leolin.shortcutbadger.ShortcutBadger;
 
 class Core {
     static final int DEFAULT_CHUNK_SIZE = 50;
+    static final int DEFAULT_FETCH_WINDOW = 4;
+    static final int DEFAULT_SYNC_TRANSACTION = 20; // messages
 
     private static final int MAX_NOTIFICATION_DISPLAY = 10; // per group
     private static final int MAX_NOTIFICATION_COUNT = 100; // per group
     private static final long SCREEN_ON_DURATION = 3000L; // milliseconds
     private static final int SYNC_BATCH_SIZE = 20;
     private static final int DOWNLOAD_BATCH_SIZE = 20;
+    private static final int COALESCE_FACTOR = 20; // similar operations per UID range
     private static final long YIELD_DURATION = 200L; // milliseconds
     private static final long JOIN_WAIT_ALIVE = 5 * 60 * 1000L; // milliseconds
     private static final long JOIN_WAIT_INTERRUPT = 1 * 60 * 1000L; // milliseconds
@@ -180,6 +193,8 @@ class Core {
             EmailService iservice, Folder ifolder,
             State state, long serial)
             throws JSONException, FolderClosedException {
+        int commands = 0;
+        int coalesced = 0;
         try {
             Log.i(folder.name + " start process");
 
@@ -187,7 +202,7 @@ class Core {
             DB db = DB.getInstance(context);
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
+            int chunk_size = ChunkSizeController.getChunkSize(context, account);
 
             NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
 
@@ -315,10 +330,15 @@ class Core {
                                     break;
                             }
 
-                            if (similar.size() >= chunk_size)
+                            // Limit the number of candidates, which are reduced to chunk_size UID ranges below
+                            if (similar.size() >= chunk_size * COALESCE_FACTOR)
                                 break;
                         }
 
+                        // The command length depends on the number of UID ranges
+                        if (similar.size() > 0)
+                            coalesce(message, similar, chunk_size);
+
                         if (skip) {
                             Log.i(folder.name +
                                     " skipping op=" + op.id + "/" + op.name +
@@ -336,6 +356,8 @@ class Core {
                             Log.i(folder.name + " similar=" + TextUtils.join(",", sids));
 
                         op.tries++;
+                        commands++;
+                        coalesced += 1 + similar.size();
 
                         // Leave crumb
                         Map<String, String> crumb = new HashMap<>();
@@ -438,7 +460,7 @@ class Core {
                                     break;
 
                                 case EntityOperation.LABEL:
-                                    onLabel(context, jargs, folder, message, (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onLabel(context, jargs, account, folder, message, (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.ADD:
@@ -482,7 +504,7 @@ class Core {
                                     break;
 
                                 case EntityOperation.REPORT:
-                                    onReport(context, jargs, folder, (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onReport(context, jargs, account, folder, (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.SYNC:
@@ -500,7 +522,7 @@ class Core {
                                     break;
 
                                 case EntityOperation.EXPUNGE:
-                                    onExpungeFolder(context, jargs, folder, (IMAPFolder) ifolder);
+                                    onExpungeFolder(context, jargs, account, folder, (IMAPFolder) ifolder);
                                     break;
 
                                 case EntityOperation.RULE:
@@ -765,6 +787,41 @@ class Core {
             }
         } finally {
             Log.i(folder.name + " end process state=" + state + " pending=" + ops.size());
+            if (commands > 0 && coalesced > commands)
+                EntityLog.log(context, EntityLog.Type.Statistics, folder,
+                        folder.name + " coalesced operations=" + coalesced + " commands=" + commands);
+        }
+    }
+
+    private static void coalesce(EntityMessage message, Map<TupleOperationEx, EntityMessage> similar, int max_ranges) {
+        // Number UID ranges, like 1:400,402,500:900
+        SortedSet<Long> uids = new TreeSet<>();
+        uids.add(message.uid);
+        for (EntityMessage m : similar.values())
+            uids.add(m.uid);
+
+        int ranges = 0;
+        Long prev = null;
+        Map<Long, Integer> range = new HashMap<>();
+        for (Long uid : uids) {
+            if (prev == null || uid != prev + 1)
+                ranges++;
+            range.put(uid, ranges - 1);
+            prev = uid;
+        }
+
+        if (ranges <= max_ranges)
+            return;
+
+        // Keep the ranges starting at the range of the message
+        int from = Math.min(range.get(message.uid), ranges - max_ranges);
+        int to = from + max_ranges - 1;
+
+        Iterator<Map.Entry<TupleOperationEx, EntityMessage>> it = similar.entrySet().iterator();
+        while (it.hasNext()) {
+            int r = range.get(it.next().getValue().uid);
+            if (r < from || r > to)
+                it.remove();
         }
     }
 
@@ -1027,7 +1084,7 @@ class Core {
         imessage.setFlags(flags, set);
     }
 
-    private static void onLabel(Context context, JSONArray jargs, EntityFolder folder, EntityMessage message, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
+    private static void onLabel(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityMessage message, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
         // Set/clear Gmail label
         // Gmail does not push label changes
         String label = jargs.getString(0);
@@ -1071,7 +1128,7 @@ class Core {
                     if (imessage == null)
                         throw new MessageRemovedException();
                     imessage.setFlag(Flags.Flag.DELETED, true);
-                    expunge(context, ifolder, Arrays.asList(imessage));
+                    expunge(context, account, ifolder, Arrays.asList(imessage));
                 } catch (MessagingException ex) {
                     Log.w(ex);
                 }
@@ -1299,7 +1356,7 @@ class Core {
                     }
                 }
 
-                expunge(context, ifolder, delete);
+                expunge(context, account, ifolder, delete);
 
             } catch (MessagingException ex) {
                 Log.w(ex);
@@ -1396,18 +1453,21 @@ class Core {
         // Get source messages
         Map<Message, EntityMessage> map = new HashMap<>();
         Map<EntityMessage, String> msgids = new HashMap<>();
-        for (EntityMessage message : messages)
-            try {
-                if (message.uid == null)
-                    throw new IllegalArgumentException("move without uid");
-                Message imessage = ifolder.getMessageByUID(message.uid);
-                if (imessage == null)
-                    throw new MessageRemovedException("move without message");
-                map.put(imessage, message);
-            } catch (MessageRemovedException ex) {
-                Log.e(ex);
+        List<Long> uids = new ArrayList<>();
+        for (EntityMessage message : messages) {
+            if (message.uid == null)
+                throw new IllegalArgumentException("move without uid");
+            uids.add(message.uid);
+        }
+        // Single UID FETCH with a UID set
+        Message[] imessages = ifolder.getMessagesByUID(Helper.toLongArray(uids));
+        for (int i = 0; i < imessages.length; i++)
+            if (imessages[i] == null) {
+                EntityMessage message = messages.get(i);
+                Log.e(new MessageRemovedException("move without message"));
                 db.message().deleteMessage(message.id);
-            }
+            } else
+                map.put(imessages[i], messages.get(i));
 
         // Some servers return different capabilities for different sessions
         // NO [CANNOT] MOVE It's not possible to perform specified operation
@@ -1515,7 +1575,7 @@ class Core {
                 } catch (MessageRemovedException ex) {
                     Log.w(ex);
                 }
-            expunge(context, ifolder, deleted);
+            expunge(context, account, ifolder, deleted);
         } else {
             int count = MessageHelper.getMessageCount(ifolder);
             db.folder().setFolderTotal(folder.id, count < 0 ? null : count, new Date().getTime());
@@ -1583,7 +1643,7 @@ class Core {
                             sync = true;
                     }
 
-                expunge(context, itarget, ideletes);
+                expunge(context, account, itarget, ideletes);
 
                 if (sync)
                     EntityOperation.sync(context, target.id, false);
@@ -1693,7 +1753,7 @@ class Core {
                         JSONArray jlabel = new JSONArray();
                         jlabel.put(0, folder.name);
                         jlabel.put(1, true);
-                        onLabel(context, jlabel, folder, message, istore, ifolder, state);
+                        onLabel(context, jlabel, account, folder, message, istore, ifolder, state);
                     } catch (Throwable ex1) {
                         Log.e(ex1);
                     }
@@ -1715,7 +1775,7 @@ class Core {
                         JSONArray jlabel = new JSONArray();
                         jlabel.put(0, folder.name);
                         jlabel.put(1, false);
-                        onLabel(context, jlabel, folder, message, istore, ifolder, state);
+                        onLabel(context, jlabel, account, folder, message, istore, ifolder, state);
                     } catch (Throwable ex1) {
                         Log.e(ex1);
                     }
@@ -1763,7 +1823,7 @@ class Core {
 
                 if (perform_expunge) {
                     ifolder.setFlags(idelete, new Flags(Flags.Flag.DELETED), true);
-                    expunge(context, ifolder, Arrays.asList(idelete));
+                    expunge(context, account, ifolder, Arrays.asList(idelete));
                     for (EntityMessage message : messages)
                         db.message().deleteMessage(message.id);
                 } else {
@@ -1826,7 +1886,7 @@ class Core {
                     }
 
                 if (perform_expunge) {
-                    if (deleted.size() == 0 || expunge(context, ifolder, deleted))
+                    if (deleted.size() == 0 || expunge(context, account, ifolder, deleted))
                         db.message().deleteMessage(message.id);
                 } else {
                     if (deleted.size() > 0)
@@ -2007,10 +2067,18 @@ class Core {
 
         MessageHelper helper = new MessageHelper((MimeMessage) imessage, context);
         MessageHelper.MessageParts parts = helper.getMessageParts();
-        String body = parts.getHtml(context, plain_text, charset);
+        String body = null;
+        String text;
         File file = message.getFile(context);
-        Helper.writeText(file, body);
-        String text = HtmlHelper.getFullText(body);
+        if (parts.writeHtml(context, plain_text, charset, file))
+            text = HtmlHelper.getFullText(file, HtmlHelper.MAX_FULL_TEXT_SIZE);
+        else {
+            body = parts.getHtml(context, plain_text, charset);
+            Helper.writeText(file, body);
+            text = HtmlHelper.getFullText(body);
+        }
+        // Keep the plain text for searching and classifying, also for streamed bodies
+        HtmlHelper.writeFullText(context, message.id, text);
         message.preview = HtmlHelper.getPreview(text);
         message.language = HtmlHelper.getLanguage(context, message.subject, text);
         Integer plain_only = parts.isPlainOnly();
@@ -2026,6 +2094,8 @@ class Core {
 
         if (body != null)
             EntityLog.log(context, "Operation body size=" + body.length());
+        else if (file.exists())
+            EntityLog.log(context, "Operation body streamed size=" + file.length());
     }
 
     private static void onAttachment(Context context, JSONArray jargs, EntityFolder folder, EntityMessage message, EntityOperation op, IMAPFolder ifolder) throws JSONException, MessagingException, IOException {
@@ -2138,7 +2208,7 @@ class Core {
         }
     }
 
-    private static void onReport(Context context, JSONArray jargs, EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException {
+    private static void onReport(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException {
         String msgid = jargs.getString(0);
         String keyword = jargs.getString(1);
 
@@ -2719,15 +2789,14 @@ class Core {
                 for (Message imessage : idelete)
                     imessage.setFlag(Flags.Flag.DELETED, true);
             } else {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
+                int chunk_size = ChunkSizeController.getChunkSize(context, account);
 
                 Flags flags = new Flags(Flags.Flag.DELETED);
                 for (List<Message> list : Helper.chunkList(idelete, chunk_size))
                     ifolder.setFlags(list.toArray(new Message[0]), flags, true);
             }
             Log.i(folder.name + " purge deleted");
-            expunge(context, ifolder, idelete);
+            expunge(context, account, ifolder, idelete);
         } catch (Throwable ex) {
             Log.e(ex);
             throw ex;
@@ -2736,7 +2805,7 @@ class Core {
         }
     }
 
-    private static void onExpungeFolder(Context context, JSONArray jargs, EntityFolder folder, IMAPFolder ifolder) throws MessagingException {
+    private static void onExpungeFolder(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, IMAPFolder ifolder) throws MessagingException {
         Log.i(folder.name + " expunge");
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -2753,7 +2822,7 @@ class Core {
                 return;
 
             Log.i(ifolder.getName() + " expunging " + TextUtils.join(",", uids));
-            uidExpunge(context, ifolder, uids);
+            uidExpunge(context, account, ifolder, uids);
             Log.i(ifolder.getName() + " expunged " + TextUtils.join(",", uids));
         } else
             ifolder.expunge();
@@ -3174,6 +3243,7 @@ class Core {
                         File file = message.getFile(context);
                         Helper.writeText(file, body);
                         String text = HtmlHelper.getFullText(body);
+                        HtmlHelper.writeFullText(context, message.id, text);
                         message.preview = HtmlHelper.getPreview(text);
                         message.language = HtmlHelper.getLanguage(context, message.subject, text);
                         db.message().setMessageContent(message.id,
@@ -3287,7 +3357,9 @@ class Core {
             boolean sync_kept = prefs.getBoolean("sync_kept", true);
             boolean delete_unseen = prefs.getBoolean("delete_unseen", false);
             boolean use_modseq = prefs.getBoolean("use_modseq", true);
+            boolean use_qresync = prefs.getBoolean("use_qresync", true);
             boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
+            int sync_transaction = prefs.getInt("sync_transaction", DEFAULT_SYNC_TRANSACTION);
 
             if (account.isYahoo() || account.isAol())
                 sync_nodate = false;
@@ -3317,6 +3389,7 @@ class Core {
                 if (folder.uidv != null && !folder.uidv.equals(uidv)) {
                     Log.w(folder.name + " uid validity changed from " + folder.uidv + " to " + uidv);
                     db.message().deleteLocalMessages(folder.id);
+                    folder.modseq = null;
                 }
                 folder.uidv = uidv;
                 db.folder().setFolderUidValidity(folder.id, uidv);
@@ -3343,6 +3416,22 @@ class Core {
                     Log.w(folder.name, ex);
                 }
 
+            // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2.6
+            boolean qresync = false;
+            if (use_qresync && modified && modseq != null && folder.modseq != null &&
+                    !force && initialize == 0)
+                try {
+                    qresync = (boolean) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                        @Override
+                        public Object doCommand(IMAPProtocol protocol) {
+                            return protocol.isEnabled("QRESYNC");
+                        }
+                    });
+                    EntityLog.log(context, folder.name + " qresync=" + qresync);
+                } catch (MessagingException ex) {
+                    Log.w(folder.name, ex);
+                }
+
             // Get reference times
             Calendar cal_sync = Calendar.getInstance();
             cal_sync.add(Calendar.DAY_OF_MONTH, -sync_days);
@@ -3392,7 +3481,10 @@ class Core {
             Long[] ids;
             if (modified || !sync_quick_imap || force) {
                 // Get list of local uids
-                final List<Long> uids = db.message().getUids(folder.id, sync_kept || force ? null : sync_time);
+                // Removed messages will be reported as vanished on resynchronization
+                final List<Long> uids = (qresync
+                        ? new ArrayList<>()
+                        : db.message().getUids(folder.id, sync_kept || force ? null : sync_time));
                 Log.i(folder.name + " local count=" + uids.size());
 
                 // Reduce list of local uids
@@ -3410,7 +3502,10 @@ class Core {
                     searchTerm = new OrTerm(searchTerm, new FlagTerm(new Flags(Flags.Flag.FLAGGED), true));
 
                 search = SystemClock.elapsedRealtime();
-                if (sync_time == 0)
+                if (qresync)
+                    imessages = getChangedMessages(context, folder, ifolder, folder.modseq,
+                            sync_time, sync_unseen, sync_flagged);
+                else if (sync_time == 0)
                     imessages = ifolder.getMessages();
                 else
                     try {
@@ -3476,6 +3571,9 @@ class Core {
                 if (modified) {
                     long fetch = SystemClock.elapsedRealtime();
 
+                    int fetch_window = Math.max(1, prefs.getInt("fetch_window", DEFAULT_FETCH_WINDOW));
+                    stats.window = fetch_window;
+
                     FetchProfile fp = new FetchProfile();
                     fp.add(UIDFolder.FetchProfileItem.UID); // To check if message exists
                     fp.add(FetchProfile.Item.FLAGS); // To update existing messages
@@ -3521,7 +3619,7 @@ class Core {
                         }
                     }
 
-                    expunge(context, ifolder, deleted);
+                    expunge(context, account, ifolder, deleted);
 
                     if (uids.size() > 0) {
                         // This is done outside of JavaMail to prevent changed notifications
@@ -3552,14 +3650,15 @@ class Core {
                                     ranges.add(new Pair<>(first, last < 0 ? first : last));
 
                                 // https://datatracker.ietf.org/doc/html/rfc2683#section-3.2.1.5
-                                int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
-                                if (chunk_size < 200 &&
-                                        (account.isGmail() || account.isOutlook()))
-                                    chunk_size = 200;
+                                int chunk_size = ChunkSizeController.getChunkSize(context, account);
                                 List<List<Pair<Long, Long>>> chunks = Helper.chunkList(ranges, chunk_size);
+                                stats.chunk = chunk_size;
 
                                 Log.i(folder.name + " executing uid fetch count=" + uids.size() +
-                                        " ranges=" + ranges.size() + " chunks=" + chunks.size());
+                                        " ranges=" + ranges.size() + " chunks=" + chunks.size() +
+                                        " window=" + fetch_window);
+
+                                List<String> commands = new ArrayList<>();
                                 for (int c = 0; c < chunks.size(); c++) {
                                     List<Pair<Long, Long>> chunk = chunks.get(c);
                                     Log.i(folder.name + " chunk #" + c + " size=" + chunk.size());
@@ -3573,87 +3672,93 @@ class Core {
                                         else
                                             sb.append(range.first).append(':').append(range.second);
                                     }
-                                    String command = "UID FETCH " + sb + " (UID FLAGS)";
-                                    Response[] responses = protocol.command(command, null);
-
-                                    if (responses.length > 0 && responses[responses.length - 1].isOK()) {
-                                        for (Response response : responses)
-                                            if (response instanceof FetchResponse) {
-                                                FetchResponse fr = (FetchResponse) response;
-                                                UID uid = fr.getItem(UID.class);
-                                                FLAGS flags = fr.getItem(FLAGS.class);
-                                                if (uid == null || flags == null)
-                                                    continue;
-                                                if (perform_expunge && flags.contains(Flags.Flag.DELETED))
-                                                    continue;
-
-                                                uids.remove(uid.uid);
-
-                                                if (force) {
-                                                    EntityMessage message = db.message().getMessageByUid(folder.id, uid.uid);
-                                                    if (message != null) {
-                                                        boolean update = false;
-                                                        boolean recent = flags.contains(Flags.Flag.RECENT);
-                                                        boolean seen = flags.contains(Flags.Flag.SEEN);
-                                                        boolean answered = flags.contains(Flags.Flag.ANSWERED);
-                                                        boolean flagged = flags.contains(Flags.Flag.FLAGGED);
-                                                        boolean deleted = flags.contains(Flags.Flag.DELETED);
-                                                        if (message.recent != recent) {
-                                                            update = true;
-                                                            message.recent = recent;
-                                                            Log.i("UID fetch recent=" + recent);
-                                                        }
-                                                        if (message.seen != seen) {
-                                                            update = true;
-                                                            message.seen = seen;
-                                                            message.ui_seen = seen;
-                                                            Log.i("UID fetch seen=" + seen);
-                                                        }
-                                                        if (message.answered != answered) {
-                                                            update = true;
-                                                            message.answered = answered;
-                                                            message.ui_answered = answered;
-                                                            Log.i("UID fetch answered=" + answered);
-                                                        }
-                                                        if (message.flagged != flagged) {
-                                                            update = true;
-                                                            message.flagged = flagged;
-                                                            message.ui_flagged = flagged;
-                                                            Log.i("UID fetch flagged=" + flagged);
-                                                        }
-                                                        if (message.deleted != deleted) {
-                                                            update = true;
-                                                            message.deleted = deleted;
-                                                            message.ui_deleted = deleted;
-                                                            message.ui_ignored = deleted;
-                                                            Log.i("UID fetch deleted=" + deleted);
-                                                        }
-
-                                                        if (update)
-                                                            db.message().updateMessage(message);
-                                                    }
+                                    commands.add("UID FETCH " + sb + " (UID FLAGS)");
+                                }
+
+                                // https://datatracker.ietf.org/doc/html/rfc3501#section-5.5
+                                long fetch = SystemClock.elapsedRealtime();
+                                long received = protocol.getReceived();
+                                Response[] results = protocol.pipeline(commands, fetch_window, new ResponseHandler() {
+                                    @Override
+                                    public void handleResponse(Response response) {
+                                        if (!(response instanceof FetchResponse))
+                                            return;
+
+                                        FetchResponse fr = (FetchResponse) response;
+                                        UID uid = fr.getItem(UID.class);
+                                        FLAGS flags = fr.getItem(FLAGS.class);
+                                        if (uid == null || flags == null)
+                                            return;
+                                        if (perform_expunge && flags.contains(Flags.Flag.DELETED))
+                                            return;
+
+                                        uids.remove(uid.uid);
+
+                                        if (force) {
+                                            EntityMessage message = db.message().getMessageByUid(folder.id, uid.uid);
+                                            if (message != null) {
+                                                boolean update = false;
+                                                boolean recent = flags.contains(Flags.Flag.RECENT);
+                                                boolean seen = flags.contains(Flags.Flag.SEEN);
+                                                boolean answered = flags.contains(Flags.Flag.ANSWERED);
+                                                boolean flagged = flags.contains(Flags.Flag.FLAGGED);
+                                                boolean deleted = flags.contains(Flags.Flag.DELETED);
+                                                if (message.recent != recent) {
+                                                    update = true;
+                                                    message.recent = recent;
+                                                    Log.i("UID fetch recent=" + recent);
                                                 }
-                                            }
-                                    } else {
-                                        for (Response response : responses)
-                                            if (response.isBYE())
-                                                return new MessagingException("UID FETCH", new IOException(response.toString()));
-                                            else if (response.isNO()) {
-                                                Log.e("UID FETCH " + response);
-                                                throw new CommandFailedException(response);
-                                            } else if (response.isBAD()) {
-                                                Log.e("UID FETCH " + response);
-                                                // BAD Error in IMAP command UID FETCH: Too long argument (n.nnn + n.nnn + n.nnn secs).
-                                                if (response.toString().contains("Too long argument")) {
-                                                    chunk_size = chunk_size / 2;
-                                                    if (chunk_size > 0)
-                                                        prefs.edit().putInt("chunk_size", chunk_size).apply();
+                                                if (message.seen != seen) {
+                                                    update = true;
+                                                    message.seen = seen;
+                                                    message.ui_seen = seen;
+                                                    Log.i("UID fetch seen=" + seen);
+                                                }
+                                                if (message.answered != answered) {
+                                                    update = true;
+                                                    message.answered = answered;
+                                                    message.ui_answered = answered;
+                                                    Log.i("UID fetch answered=" + answered);
+                                                }
+                                                if (message.flagged != flagged) {
+                                                    update = true;
+                                                    message.flagged = flagged;
+                                                    message.ui_flagged = flagged;
+                                                    Log.i("UID fetch flagged=" + flagged);
+                                                }
+                                                if (message.deleted != deleted) {
+                                                    update = true;
+                                                    message.deleted = deleted;
+                                                    message.ui_deleted = deleted;
+                                                    message.ui_ignored = deleted;
+                                                    Log.i("UID fetch deleted=" + deleted);
                                                 }
-                                                throw new BadCommandException(response);
+
+                                                if (update)
+                                                    db.message().updateMessage(message);
                                             }
-                                        throw new ProtocolException("UID FETCH failed");
+                                        }
                                     }
-                                }
+                                });
+
+                                for (Response response : results)
+                                    if (response.isBYE())
+                                        return new MessagingException("UID FETCH", new IOException(response.toString()));
+                                    else if (response.isNO()) {
+                                        Log.e("UID FETCH " + response);
+                                        throw new CommandFailedException(response);
+                                    } else if (response.isBAD()) {
+                                        Log.e("UID FETCH " + response);
+                                        // BAD Error in IMAP command UID FETCH: Too long argument (n.nnn + n.nnn + n.nnn secs).
+                                        if (response.toString().contains("Too long argument"))
+                                            ChunkSizeController.onFailed(context, account, folder, chunk_size);
+                                        throw new BadCommandException(response);
+                                    } else if (!response.isOK())
+                                        throw new ProtocolException("UID FETCH failed");
+
+                                ChunkSizeController.onCompleted(context, account, folder, chunk_size, chunks.size(),
+                                        protocol.getReceived() - received,
+                                        SystemClock.elapsedRealtime() - fetch);
 
                                 return null;
                             }
@@ -3687,8 +3792,16 @@ class Core {
                         fp.add(GmailFolder.FetchProfileItem.THRID);
 
                     // Add/update local messages
+                    // Network I/O should not be done while holding the database lock:
+                    // inline downloading, fetching the body for rules and DNS lookups
+                    boolean network = ((download && initialize == 0) ||
+                            EntityRule.needsBody(null, rules) ||
+                            prefs.getBoolean("check_mx", false) ||
+                            prefs.getBoolean("check_blocklist", false));
+                    int batch_size = (network ? 1 : Math.max(1, sync_transaction));
                     DutyCycle dc = new DutyCycle(account.name + " sync");
-                    Log.i(folder.name + " add=" + imessages.length);
+                    Log.i(folder.name + " add=" + imessages.length + " batch=" + batch_size);
+                    Map<Integer, List<Message>> prefetched = new HashMap<>();
                     for (int i = imessages.length - 1; i >= 0; i -= SYNC_BATCH_SIZE) {
                         state.ensureRunning("Sync/IMAP/sync/fetch");
 
@@ -3696,19 +3809,35 @@ class Core {
                         Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
 
                         // Full fetch new/changed messages only
-                        List<Message> full = new ArrayList<>();
-                        for (Message imessage : isub) {
-                            long uid = ifolder.getUID(imessage); // already fetched
-                            EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                            if (message == null)
-                                full.add(imessage);
-                        }
-                        if (full.size() > 0) {
-                            long headers = SystemClock.elapsedRealtime();
-                            ifolder.fetch(full.toArray(new Message[0]), fp);
-                            stats.headers += full.size();
-                            stats.headers_ms += (SystemClock.elapsedRealtime() - headers);
-                            Log.i(folder.name + " fetched headers=" + full.size() + " " + stats.headers_ms + " ms");
+                        List<Message> full = prefetched.remove(i);
+                        if (full == null) {
+                            // Fetch the headers of the next batches with pipelined commands
+                            int count = 0;
+                            List<Message[]> batches = new ArrayList<>();
+                            for (int w = 0, k = i; w < fetch_window && k >= 0; w++, k -= SYNC_BATCH_SIZE) {
+                                List<Message> f = new ArrayList<>();
+                                for (int m = Math.max(0, k - SYNC_BATCH_SIZE + 1); m <= k; m++) {
+                                    long uid = ifolder.getUID(imessages[m]); // already fetched
+                                    EntityMessage message = db.message().getMessageByUid(folder.id, uid);
+                                    if (message == null)
+                                        f.add(imessages[m]);
+                                }
+                                prefetched.put(k, f);
+                                if (f.size() > 0) {
+                                    batches.add(f.toArray(new Message[0]));
+                                    count += f.size();
+                                }
+                            }
+                            full = prefetched.remove(i);
+
+                            if (batches.size() > 0) {
+                                long headers = SystemClock.elapsedRealtime();
+                                ifolder.fetch(batches, fp, fetch_window);
+                                stats.headers += count;
+                                stats.headers_ms += (SystemClock.elapsedRealtime() - headers);
+                                Log.i(folder.name + " fetched headers=" + count +
+                                        " batches=" + batches.size() + " " + stats.headers_ms + " ms");
+                            }
                         }
 
                         int free = Log.getFreeMemMb();
@@ -3721,57 +3850,123 @@ class Core {
                         Log.breadcrumb("sync", crumb);
                         Log.i("Sync " + from + ".." + i + " free=" + free);
 
-                        for (int j = isub.length - 1; j >= 0; j--) {
-                            state.ensureRunning("Sync/IMAP/sync");
-
-                            try {
-                                dc.start();
+                        // Persist messages in batches to reduce the number of commits
+                        boolean open = false;
+                        int batched = 0;
+                        int first = 0;
+                        int replay = isub.length; // failed batch is retried one message at a time down to here
+                        List<EntityMessage> added = new ArrayList<>(); // reported after commit
+                        try {
+                            for (int j = isub.length - 1; j >= 0; j--) {
+                                state.ensureRunning("Sync/IMAP/sync");
+
+                                // Expunging a deleted message and downloading a report
+                                // should not be done while holding the database lock
+                                boolean batchable = (batch_size > 1 && j < replay &&
+                                        !isDeleted(isub[j]) && !isReport(isub[j]));
+                                if (open && !batchable) {
+                                    open = false;
+                                    endBatch(context, account, folder, added, true, stats);
+                                    for (int k = j + 1; k <= first; k++)
+                                        isub[k] = null;
+                                }
+                                if (batchable && !open) {
+                                    db.beginTransaction();
+                                    open = true;
+                                    batched = 0;
+                                    first = j;
+                                }
 
-                                // Some providers erroneously return old messages
-                                if (full.contains(isub[j]))
-                                    try {
-                                        Date received = isub[j].getReceivedDate();
-                                        if (received == null || received.getTime() == 0)
-                                            received = isub[j].getSentDate();
-                                        boolean unseen = (sync_unseen && !isub[j].isSet(Flags.Flag.SEEN));
-                                        boolean flagged = (sync_flagged && isub[j].isSet(Flags.Flag.FLAGGED));
-                                        if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
-                                            long uid = ifolder.getUID(isub[j]);
-                                            Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
-                                            ids[from + j] = null;
-                                            continue;
+                                boolean failed = false;
+                                try {
+                                    dc.start();
+
+                                    // Some providers erroneously return old messages
+                                    boolean old = false;
+                                    if (full.contains(isub[j]))
+                                        try {
+                                            Date received = isub[j].getReceivedDate();
+                                            if (received == null || received.getTime() == 0)
+                                                received = isub[j].getSentDate();
+                                            boolean unseen = (sync_unseen && !isub[j].isSet(Flags.Flag.SEEN));
+                                            boolean flagged = (sync_flagged && isub[j].isSet(Flags.Flag.FLAGGED));
+                                            if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
+                                                long uid = ifolder.getUID(isub[j]);
+                                                Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
+                                                ids[from + j] = null;
+                                                old = true;
+                                            }
+                                        } catch (Throwable ex) {
+                                            Log.w(ex);
                                         }
-                                    } catch (Throwable ex) {
-                                        Log.w(ex);
-                                    }
 
-                                EntityMessage message = synchronizeMessage(
-                                        context,
-                                        account, folder,
-                                        istore, ifolder, (MimeMessage) isub[j],
-                                        false, download && initialize == 0,
-                                        rules, state, stats);
-                                ids[from + j] = (message == null || message.ui_hide ? null : message.id);
-                            } catch (MessageRemovedException ex) {
-                                Log.w(folder.name, ex);
-                            } catch (FolderClosedException ex) {
-                                throw ex;
-                            } catch (IOException ex) {
-                                if (ex.getCause() instanceof MessagingException) {
+                                    if (!old) {
+                                        EntityMessage message = synchronizeMessage(
+                                                context,
+                                                account, folder,
+                                                istore, ifolder, (MimeMessage) isub[j],
+                                                false, download && initialize == 0,
+                                                rules, state, stats);
+                                        ids[from + j] = (message == null || message.ui_hide ? null : message.id);
+                                        if (open && message != null && full.contains(isub[j]))
+                                            added.add(message);
+                                    }
+                                } catch (MessageRemovedException ex) {
                                     Log.w(folder.name, ex);
-                                    modseq = null;
-                                    db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
-                                } else
+                                    failed = open;
+                                } catch (FolderClosedException ex) {
                                     throw ex;
-                            } catch (Throwable ex) {
-                                Log.e(folder.name, ex);
-                                modseq = null;
-                                db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
-                            } finally {
-                                // Free memory
-                                isub[j] = null;
-                                dc.stop(state.getForeground(), from == 0 && j == 0);
+                                } catch (IOException ex) {
+                                    if (ex.getCause() instanceof MessagingException) {
+                                        Log.w(folder.name, ex);
+                                        if (open)
+                                            failed = true;
+                                        else {
+                                            modseq = null;
+                                            db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
+                                        }
+                                    } else
+                                        throw ex;
+                                } catch (Throwable ex) {
+                                    if (open) {
+                                        Log.w(folder.name, ex);
+                                        failed = true;
+                                    } else {
+                                        Log.e(folder.name, ex);
+                                        modseq = null;
+                                        db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
+                                    }
+                                } finally {
+                                    // Free memory, but keep batched messages until committed
+                                    if (!open)
+                                        isub[j] = null;
+                                    dc.stop(state.getForeground(), from == 0 && j == 0);
+                                }
+
+                                if (failed) {
+                                    // Retry the messages of the batch one by one,
+                                    // so only the failing message is left out and its error is stored
+                                    open = false;
+                                    endBatch(context, account, folder, added, false, stats);
+                                    for (int k = j; k <= first; k++)
+                                        ids[from + k] = null;
+                                    Log.w(folder.name + " rolled back batch " + (from + j) + ".." + (from + first));
+                                    replay = j;
+                                    j = first + 1;
+                                    continue;
+                                }
+
+                                if (open && (++batched >= batch_size || j == 0)) {
+                                    open = false;
+                                    endBatch(context, account, folder, added, true, stats);
+                                    for (int k = j; k <= first; k++)
+                                        isub[k] = null;
+                                }
                             }
+                        } finally {
+                            // Keep the messages added before being interrupted
+                            if (open)
+                                endBatch(context, account, folder, added, true, stats);
                         }
                     }
                 }
@@ -3895,6 +4090,44 @@ class Core {
         }
     }
 
+    private static void endBatch(
+            Context context, EntityAccount account, EntityFolder folder,
+            List<EntityMessage> added, boolean commit, SyncStats stats) {
+        DB db = DB.getInstance(context);
+        try {
+            if (commit)
+                db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        stats.transactions++;
+
+        // Side effects outside the database should happen once and only for committed messages
+        if (commit)
+            for (EntityMessage message : added)
+                reportNewMessage(context, account, folder, message);
+        added.clear();
+    }
+
+    private static boolean isDeleted(Message imessage) {
+        try {
+            return imessage.isSet(Flags.Flag.DELETED);
+        } catch (Throwable ex) {
+            // Leave error handling to synchronizeMessage
+            return true;
+        }
+    }
+
+    private static boolean isReport(Message imessage) {
+        try {
+            // Body structure was fetched
+            return imessage.isMimeType("multipart/report");
+        } catch (Throwable ex) {
+            // Leave error handling to synchronizeMessage
+            return true;
+        }
+    }
+
     static EntityMessage synchronizeMessage(
             Context context,
             EntityAccount account, EntityFolder folder,
@@ -3922,7 +4155,7 @@ class Core {
 
         if (imessage.isSet(Flags.Flag.DELETED)) {
             Log.w(folder.name + " deleted uid=" + uid);
-            if (expunge(context, ifolder, Arrays.asList(imessage)))
+            if (expunge(context, account, ifolder, Arrays.asList(imessage)))
                 throw new MessageRemovedException("Deleted");
         }
 
@@ -4277,6 +4510,7 @@ class Core {
                     Log.w(ex);
                 }
 
+            boolean batched = db.inTransaction();
             try {
                 db.beginTransaction();
 
@@ -4326,6 +4560,14 @@ class Core {
                 crumb.put("what", ex.getMessage());
                 Log.breadcrumb("insert", crumb);
 
+                // A failed message insert rolls back the statement only,
+                // any later failure requires the caller to roll back the batch
+                if (batched) {
+                    if (message.id != null)
+                        throw ex;
+                    db.setTransactionSuccessful();
+                }
+
                 return null;
             } finally {
                 db.endTransaction();
@@ -4334,11 +4576,12 @@ class Core {
             try {
                 EntityContact.received(context, account, folder, message);
 
-                if (body == null && helper.isReport())
+                if (body == null && helper.isReport() && !batched)
                     body = parts.getHtml(context, download_plain);
 
                 // Download small messages inline
-                if (body != null || (download && !message.ui_hide)) {
+                // Batches exclude network I/O and classifying, which cannot be rolled back
+                if (!batched && (body != null || (download && !message.ui_hide))) {
                     long maxSize;
                     if (state == null || state.networkState.isUnmetered())
                         maxSize = MessageHelper.SMALL_MESSAGE_SIZE;
@@ -4352,11 +4595,17 @@ class Core {
                             (message.size != null && message.size < maxSize) ||
                             (MessageClassifier.isEnabled(context)) && folder.auto_classify_source)
                         try {
-                            if (body == null)
-                                body = parts.getHtml(context, download_plain);
+                            String text;
                             File file = message.getFile(context);
-                            Helper.writeText(file, body);
-                            String text = HtmlHelper.getFullText(body);
+                            if (body == null && parts.writeHtml(context, download_plain, null, file))
+                                text = HtmlHelper.getFullText(file, HtmlHelper.MAX_FULL_TEXT_SIZE);
+                            else {
+                                if (body == null)
+                                    body = parts.getHtml(context, download_plain);
+                                Helper.writeText(file, body);
+                                text = HtmlHelper.getFullText(body);
+                            }
+                            HtmlHelper.writeFullText(context, message.id, text);
                             message.preview = HtmlHelper.getPreview(text);
                             message.language = HtmlHelper.getLanguage(context, message.subject, text);
                             db.message().setMessageContent(message.id,
@@ -4367,12 +4616,13 @@ class Core {
                                     parts.getWarnings(message.warning));
                             MessageClassifier.classify(message, folder, true, context);
 
-                            if (stats != null && body != null)
-                                stats.content += body.length();
+                            long length = (body == null ? file.length() : body.length());
+                            if (stats != null)
+                                stats.content += length;
                             Log.i(folder.name + " inline downloaded message id=" + message.id +
-                                    " size=" + message.size + "/" + (body == null ? null : body.length()));
+                                    " size=" + message.size + "/" + length);
 
-                            if (TextUtils.isEmpty(body) && parts.hasBody())
+                            if (length == 0 && parts.hasBody())
                                 reportEmptyMessage(context, state, account, istore);
                         } finally {
                             if (!message.ui_hide)
@@ -4383,7 +4633,9 @@ class Core {
                 db.message().setMessageNotifying(message.id, 0);
             }
 
-            reportNewMessage(context, account, folder, message);
+            // Reported by the batch after commit
+            if (!batched)
+                reportNewMessage(context, account, folder, message);
         } else {
             if (process) {
                 EntityIdentity identity = matchIdentity(context, folder, message);
@@ -4589,7 +4841,130 @@ class Core {
         return message;
     }
 
-    private static boolean expunge(Context context, IMAPFolder ifolder, List<Message> messages) {
+    static ResyncData getResyncData(Context context, EntityFolder folder, IMAPStore istore) throws MessagingException {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean use_modseq = prefs.getBoolean("use_modseq", true);
+        boolean use_qresync = prefs.getBoolean("use_qresync", true);
+
+        if (!use_modseq || !use_qresync ||
+                folder.uidv == null || folder.modseq == null)
+            return null;
+
+        // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2.5
+        if (!istore.hasCapability("QRESYNC") || !istore.hasCapability("ENABLE"))
+            return null;
+
+        return new ResyncData(folder.uidv, folder.modseq);
+    }
+
+    static void onResync(Context context, EntityFolder folder, List<MailEvent> events) {
+        if (events == null)
+            return;
+
+        int vanished = 0;
+        int changed = 0;
+        for (MailEvent event : events)
+            if (event instanceof MessageVanishedEvent) {
+                long[] luids = ((MessageVanishedEvent) event).getUIDs();
+                vanished += deleteVanished(context, folder, UIDSet.createUIDSets(luids));
+            } else if (event instanceof MessageChangedEvent)
+                changed++; // Will be fetched on synchronizing
+
+        EntityLog.log(context, folder.name + " resync vanished=" + vanished + " changed=" + changed);
+    }
+
+    private static Message[] getChangedMessages(
+            Context context, EntityFolder folder, IMAPFolder ifolder, long modseq,
+            long sync_time, boolean sync_unseen, boolean sync_flagged) throws MessagingException {
+        DB db = DB.getInstance(context);
+        List<UIDSet> vanished = new ArrayList<>();
+        List<Long> changed = new ArrayList<>();
+
+        // This is done outside of JavaMail to prevent changed notifications
+        MessagingException ex = (MessagingException) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Response[] responses = protocol.command(
+                        "UID FETCH 1:* (UID FLAGS INTERNALDATE) (CHANGEDSINCE " + modseq + " VANISHED)", null);
+
+                if (responses.length == 0)
+                    throw new ProtocolException("No response");
+
+                Response response = responses[responses.length - 1];
+                if (response.isBYE())
+                    return new MessagingException("UID FETCH", new IOException(response.toString()));
+                if (!response.isOK()) {
+                    Log.e("UID FETCH " + response);
+                    protocol.handleResult(response);
+                    throw new ProtocolException("UID FETCH failed");
+                }
+
+                for (Response r : responses)
+                    if (r instanceof FetchResponse) {
+                        FetchResponse fr = (FetchResponse) r;
+                        UID uid = fr.getItem(UID.class);
+                        if (uid == null)
+                            continue;
+
+                        // Skip new messages outside of the sync window
+                        if (db.message().getMessageByUid(folder.id, uid.uid) == null) {
+                            INTERNALDATE received = fr.getItem(INTERNALDATE.class);
+                            FLAGS flags = fr.getItem(FLAGS.class);
+                            boolean unseen = (sync_unseen && flags != null && !flags.contains(Flags.Flag.SEEN));
+                            boolean flagged = (sync_flagged && flags != null && flags.contains(Flags.Flag.FLAGGED));
+                            if (received != null && received.getDate() != null &&
+                                    received.getDate().getTime() < sync_time && !unseen && !flagged) {
+                                Log.i(folder.name + " changed outside sync window uid=" + uid.uid);
+                                continue;
+                            }
+                        }
+
+                        changed.add(uid.uid);
+                    } else if (r instanceof IMAPResponse && ((IMAPResponse) r).keyEquals("VANISHED")) {
+                        // "VANISHED" SP "(EARLIER)" SP known-uids
+                        IMAPResponse ir = (IMAPResponse) r;
+                        ir.readAtomStringList();
+                        UIDSet[] uidsets = UIDSet.parseUIDSets(ir.readAtom());
+                        if (uidsets != null)
+                            vanished.addAll(Arrays.asList(uidsets));
+                    }
+
+                return null;
+            }
+        });
+        if (ex != null)
+            throw ex;
+
+        int deleted = deleteVanished(context, folder, vanished.toArray(new UIDSet[0]));
+        EntityLog.log(context, folder.name + " changed since modseq=" + modseq +
+                " changed=" + changed.size() + " vanished=" + deleted);
+
+        List<Message> imessages = new ArrayList<>();
+        for (Message imessage : ifolder.getMessagesByUID(Helper.toLongArray(changed)))
+            if (imessage != null)
+                imessages.add(imessage);
+        return imessages.toArray(new Message[0]);
+    }
+
+    private static int deleteVanished(Context context, EntityFolder folder, UIDSet[] uidsets) {
+        if (uidsets == null || uidsets.length == 0)
+            return 0;
+
+        // Vanished ranges can include uids never seen, which will not match
+        DB db = DB.getInstance(context);
+        int count = 0;
+        for (UIDSet uidset : uidsets) {
+            int deleted = (uidset.start == uidset.end
+                    ? db.message().deleteMessage(folder.id, uidset.start)
+                    : db.message().deleteMessages(folder.id, uidset.start, uidset.end));
+            if (deleted > 0)
+                Log.i(folder.name + " vanished uids=" + uidset.start + ":" + uidset.end + " count=" + deleted);
+            count += deleted;
+        }
+        return count;
+    }
+
+    private static boolean expunge(Context context, EntityAccount account, IMAPFolder ifolder, List<Message> messages) {
         if (messages.size() == 0)
             return false;
 
@@ -4623,7 +4998,7 @@ class Core {
                     }
 
                 Log.i(ifolder.getName() + " expunging " + TextUtils.join(",", uids));
-                uidExpunge(context, ifolder, uids);
+                uidExpunge(context, account, ifolder, uids);
                 Log.i(ifolder.getName() + " expunged " + TextUtils.join(",", uids));
             } else {
                 Log.i(ifolder.getName() + " expunging all");
@@ -4639,9 +5014,8 @@ class Core {
         }
     }
 
-    private static void uidExpunge(Context context, IMAPFolder ifolder, List<Long> uids) throws MessagingException {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
+    private static void uidExpunge(Context context, EntityAccount account, IMAPFolder ifolder, List<Long> uids) throws MessagingException {
+        int chunk_size = ChunkSizeController.getChunkSize(context, account);
 
         ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
             @Override
@@ -4850,10 +5224,17 @@ class Core {
             if (!message.content) {
                 if (state.getNetworkState().isUnmetered() ||
                         (message.size != null && message.size < maxSize)) {
-                    String body = parts.getHtml(context);
+                    String body = null;
+                    String text;
                     File file = message.getFile(context);
-                    Helper.writeText(file, body);
-                    String text = HtmlHelper.getFullText(body);
+                    if (parts.writeHtml(context, false, null, file))
+                        text = HtmlHelper.getFullText(file, HtmlHelper.MAX_FULL_TEXT_SIZE);
+                    else {
+                        body = parts.getHtml(context);
+                        Helper.writeText(file, body);
+                        text = HtmlHelper.getFullText(body);
+                    }
+                    HtmlHelper.writeFullText(context, message.id, text);
                     message.preview = HtmlHelper.getPreview(text);
                     message.language = HtmlHelper.getLanguage(context, message.subject, text);
                     db.message().setMessageContent(message.id,
@@ -4864,12 +5245,13 @@ class Core {
                             parts.getWarnings(message.warning));
                     MessageClassifier.classify(message, folder, true, context);
 
-                    if (stats != null && body != null)
-                        stats.content += body.length();
+                    long length = (body == null ? file.length() : body.length());
+                    if (stats != null)
+                        stats.content += length;
                     Log.i(folder.name + " downloaded message id=" + message.id +
-                            " size=" + message.size + "/" + (body == null ? null : body.length()));
+                            " size=" + message.size + "/" + length);
 
-                    if (TextUtils.isEmpty(body) && parts.hasBody())
+                    if (length == 0 && parts.hasBody())
                         reportEmptyMessage(context, state, account, istore);
                 }
             }
@@ -5727,8 +6109,7 @@ class Core {
                 String preview = message.preview;
                 if (notify_preview_all)
                     try {
-                        File file = message.getFile(context);
-                        preview = HtmlHelper.getFullText(file);
+                        preview = HtmlHelper.getFullText(context, message.id);
                         if (preview != null && preview.length() > MAX_PREVIEW)
                             preview = preview.substring(0, MAX_PREVIEW);
                     } catch (Throwable ex) {
@@ -6124,6 +6505,9 @@ class Core {
         long flags_ms;
         int uids;
         long uids_ms;
+        int chunk;
+        int window;
+        int transactions;
         int headers;
         long headers_ms;
         long content;
@@ -6136,6 +6520,9 @@ class Core {
                     flags_ms == 0 &&
                     uids == 0 &&
                     uids_ms == 0 &&
+                    chunk == 0 &&
+                    window == 0 &&
+                    transactions == 0 &&
                     headers == 0 &&
                     headers_ms == 0 &&
                     content == 0 &&
@@ -6148,6 +6535,9 @@ class Core {
             return "search=" + search_ms + " ms" +
                     " flags=" + flags + "/" + flags_ms + " ms" +
                     " uids=" + uids + "/" + uids_ms + " ms" +
+                    " chunk=" + chunk +
+                    " window=" + window +
+                    " transactions=" + transactions +
                     " headers=" + headers + "/" + headers_ms + " ms" +
                     " content=" + Helper.humanReadableByteCount(content) +
                     " attachments=" + Helper.humanReadableByteCount(attachments) +
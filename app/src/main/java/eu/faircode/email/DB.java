@@ -71,7 +71,7 @@ import io.requery.android.database.sqlite.SQLiteDatabase;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 239,
+        version = 242,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
@@ -144,7 +144,7 @@ public abstract class DB extends RoomDatabase {
     public void init(@NonNull DatabaseConfiguration configuration) {
         // https://www.sqlite.org/pragma.html#pragma_wal_autocheckpoint
         if (BuildConfig.DEBUG) {
-            File dbfile = configuration.context.getDatabasePath(DB_NAME);
+            File dbfile = configuration.context.getDatabasePath(configuration.name);
             if (dbfile.exists()) {
                 try (SQLiteDatabase db = SQLiteDatabase.openDatabase(dbfile.getPath(), null, SQLiteDatabase.OPEN_READWRITE)) {
                     Log.i("Set PRAGMA wal_autocheckpoint=" + DB_CHECKPOINT);
@@ -339,7 +339,7 @@ public abstract class DB extends RoomDatabase {
         if (sInstance == null) {
             Log.i("Creating database instance pid=" + sPid);
 
-            sInstance = migrate(sContext, getBuilder(sContext)).build();
+            sInstance = migrate(sContext, getBuilder(sContext, DB_NAME)).build();
 
             sInstance.getQueryExecutor().execute(new Runnable() {
                 @Override
@@ -375,7 +375,12 @@ public abstract class DB extends RoomDatabase {
         return sInstance;
     }
 
-    private static RoomDatabase.Builder<DB> getBuilder(Context context) {
+    static DB getBenchmarkInstance(Context context, String name) {
+        // Throwaway database, which is created from scratch
+        return getBuilder(context.getApplicationContext(), name).build();
+    }
+
+    private static RoomDatabase.Builder<DB> getBuilder(Context context, String name) {
         try {
             ReLinker.log(new ReLinker.Logger() {
                 @Override
@@ -395,7 +400,7 @@ public abstract class DB extends RoomDatabase {
         ExecutorService executorTransaction = Helper.getBackgroundExecutor(0, "transaction");
 
         return Room
-                .databaseBuilder(context, DB.class, DB_NAME)
+                .databaseBuilder(context, DB.class, name)
                 .openHelperFactory(new RequerySQLiteOpenHelperFactory())
                 .setQueryExecutor(executorQuery)
                 .setTransactionExecutor(executorTransaction)
@@ -485,6 +490,17 @@ public abstract class DB extends RoomDatabase {
                 "  AND OLD.encryption IS NULL" +
                 "  AND NOT ((OLD.disposition = 'inline' OR (OLD.related IS NOT 0 AND OLD.cid IS NOT NULL)) AND OLD.type IN (" + images + "));" +
                 " END");
+        // Index the text of attachments downloaded after the message was indexed
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_downloaded" +
+                " AFTER UPDATE OF available ON attachment" +
+                " WHEN NEW.available AND NOT OLD.available" +
+                " AND NEW.encryption IS NULL" +
+                " AND (NEW.type LIKE 'text/%' OR NEW.type = 'message/rfc822')" +
+                " BEGIN" +
+                "  UPDATE message SET fts = 0" +
+                "  WHERE message.id = NEW.message" +
+                "  AND fts;" +
+                " END");
     }
 
     private static void logMigration(int startVersion, int endVersion) {
@@ -2395,6 +2411,24 @@ public abstract class DB extends RoomDatabase {
                             Log.e(ex);
                         }
                     }
+                }).addMigrations(new Migration(239, 240) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("ALTER TABLE `account` ADD COLUMN `compress` INTEGER NOT NULL DEFAULT 1");
+                    }
+                }).addMigrations(new Migration(240, 241) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("ALTER TABLE `account` ADD COLUMN `chunk_size` INTEGER");
+                    }
+                }).addMigrations(new Migration(241, 242) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `ui_rank` INTEGER");
+                    }
                 }).addMigrations(new Migration(998, 999) {
                     @Override
                     public void migrate(@NonNull SupportSQLiteDatabase db) {
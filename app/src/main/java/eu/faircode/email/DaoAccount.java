@@ -267,6 +267,15 @@ public interface DaoAccount {
     @Query("UPDATE account SET max_size = :max_size WHERE id = :id AND NOT (max_size IS :max_size)")
     int setAccountMaxSize(long id, Long max_size);
 
+    @Query("SELECT chunk_size FROM account WHERE id = :id")
+    Integer getAccountChunkSize(long id);
+
+    @Query("UPDATE account SET chunk_size = :chunk_size WHERE id = :id AND chunk_size IS :previous")
+    int setAccountChunkSize(long id, Integer previous, Integer chunk_size);
+
+    @Query("UPDATE account SET chunk_size = NULL WHERE NOT chunk_size IS NULL")
+    int resetAccountChunkSize();
+
     @Query("UPDATE account" +
             " SET capabilities = :capabilities" +
             ", capability_idle = :idle" +
@@ -101,7 +101,8 @@ public interface DaoMessage {
             " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_drafts + ")" +
             " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
             " AND (:filter_language IS NULL OR SUM(message.language = :filter_language) > 0)" +
-            " ORDER BY -IFNULL(message.importance, 1)" +
+            " ORDER BY CASE WHEN :found THEN MIN(message.ui_rank) ELSE NULL END" +
+            ", -IFNULL(message.importance, 1)" +
             ", CASE WHEN :group_category THEN account.category ELSE '' END COLLATE NOCASE" +
             ", CASE" +
             "   WHEN 'unread' = :sort THEN SUM(1 - message.ui_seen) = 0" +
@@ -176,7 +177,8 @@ public interface DaoMessage {
             " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_outbox + " OR " + is_drafts + ")" +
             " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
             " AND (:filter_language IS NULL OR SUM(message.language = :filter_language) > 0 OR " + is_outbox + ")" +
-            " ORDER BY -IFNULL(message.importance, 1)" +
+            " ORDER BY CASE WHEN :found THEN MIN(message.ui_rank) ELSE NULL END" +
+            ", -IFNULL(message.importance, 1)" +
             ", CASE" +
             "   WHEN 'unread' = :sort THEN SUM(1 - message.ui_seen) = 0" +
             "   WHEN 'starred' = :sort THEN COUNT(message.id) - SUM(1 - message.ui_flagged) = 0" +
@@ -306,6 +308,11 @@ public interface DaoMessage {
             " WHERE id = :id")
     EntityMessage getMessage(long id);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE id IN (:ids)")
+    List<EntityMessage> getMessagesByIds(List<Long> ids);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE folder = :folder" +
@@ -327,7 +334,7 @@ public interface DaoMessage {
     List<Long> getMessageIdsByFolder(Long folder);
 
     @Transaction
-    @Query("SELECT message.id FROM message" +
+    @Query("SELECT message.id, message.attachments FROM message" +
             " JOIN folder_view AS folder ON folder.id = message.folder" +
             " WHERE content" +
             " AND NOT fts" +
@@ -335,6 +342,38 @@ public interface DaoMessage {
             " ORDER BY message.received")
     Cursor getMessageFts();
 
+    @Query("SELECT message.id FROM message" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " WHERE NOT fts" +
+            " AND NOT ui_hide" +
+            " AND folder.type <> '" + EntityFolder.OUTBOX + "'" +
+            " AND (:account IS NULL OR message.account = :account)" +
+            " AND (:folder IS NULL OR message.folder = :folder)" +
+            " AND NOT message.folder IN (:exclude)" +
+            " AND (:after IS NULL OR received > :after)" +
+            " AND (:before IS NULL OR received < :before)" +
+            " ORDER BY message.received DESC")
+    List<Long> getMessageUnindexed(Long account, Long folder, long[] exclude, Long after, Long before);
+
+    @Query("SELECT * FROM message" +
+            " WHERE id IN (:ids)" +
+            " AND NOT ui_hide" +
+            " AND (NOT :unseen OR NOT ui_seen)" +
+            " AND (NOT :flagged OR ui_flagged)" +
+            " AND (NOT :hidden OR NOT ui_snoozed IS NULL)" +
+            " AND (NOT :encrypted OR (NOT encrypt IS NULL AND encrypt <> 0))" +
+            " AND (NOT :with_attachments OR attachments > 0)" +
+            " AND NOT folder IN (:exclude)")
+    List<EntityMessage> getMessagesForSearch(
+            List<Long> ids,
+            boolean unseen, boolean flagged, boolean hidden, boolean encrypted, boolean with_attachments,
+            long[] exclude);
+
+    @Query("SELECT id FROM message" +
+            " WHERE content" +
+            " ORDER BY received DESC")
+    Cursor getMessageIdsWithContentCursor();
+
     @Query("SELECT message.id, account, thread, (:find IS NULL" +
             " OR (:senders AND `from` LIKE :find COLLATE NOCASE)" + // no index
             " OR (:recipients AND `to` LIKE :find COLLATE NOCASE)" + // no index
@@ -672,6 +711,22 @@ public interface DaoMessage {
             " LIMIT :limit")
     Cursor getSuggestions(Long account, Long folder, String query, int limit);
 
+    @Query("SELECT sender FROM message" +
+            " WHERE NOT sender IS NULL" +
+            " AND NOT ui_hide" +
+            " GROUP BY sender" +
+            " ORDER BY COUNT(*) DESC" +
+            " LIMIT :limit")
+    List<String> getFrequentSenders(int limit);
+
+    @Query("SELECT subject FROM message" +
+            " WHERE NOT subject IS NULL" +
+            " AND NOT ui_hide" +
+            " GROUP BY subject" +
+            " ORDER BY COUNT(*) DESC" +
+            " LIMIT :limit")
+    List<String> getFrequentSubjects(int limit);
+
     @Query("SELECT language FROM message" +
             " WHERE (:account IS NULL OR message.account = :account)" +
             " AND (:folder IS NULL OR message.folder = :folder)" +
@@ -882,7 +937,10 @@ public interface DaoMessage {
     @Query("UPDATE message SET ui_found = :found WHERE id = :id AND NOT (ui_found IS :found)")
     int setMessageFound(long id, boolean found);
 
-    @Query("UPDATE message SET ui_found = 0 WHERE NOT (ui_found IS 0)")
+    @Query("UPDATE message SET ui_rank = :rank WHERE id = :id AND NOT (ui_rank IS :rank)")
+    int setMessageRank(long id, Integer rank);
+
+    @Query("UPDATE message SET ui_found = 0, ui_rank = NULL WHERE NOT (ui_found IS 0) OR NOT (ui_rank IS NULL)")
     int resetSearch();
 
     @Query("UPDATE message SET ui_snoozed = :wakeup WHERE id = :id AND NOT (ui_snoozed IS :wakeup)")
@@ -921,6 +979,11 @@ public interface DaoMessage {
             " AND uid = :uid")
     int deleteMessage(long folder, long uid);
 
+    @Query("DELETE FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :start AND :end")
+    int deleteMessages(long folder, long start, long end);
+
     @Query("DELETE FROM message" +
             " WHERE folder = :folder" +
             " AND NOT uid IS NULL")
@@ -28,6 +28,7 @@ import android.net.ConnectivityManager;
 import android.net.Network;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.system.ErrnoException;
 import android.system.OsConstants;
@@ -74,6 +75,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import javax.mail.AuthenticationFailedException;
@@ -117,6 +119,13 @@ public class EmailService implements AutoCloseable {
     private ServiceAuthenticator authenticator;
     private RingBuffer<String> breadcrumbs;
 
+    private int max_connections = DEFAULT_MAX_CONNECTIONS;
+    private LeaseSemaphore leases = new LeaseSemaphore(DEFAULT_MAX_CONNECTIONS);
+    private int leased = 0;
+    private int leased_max = 0;
+    private long lease_count = 0;
+    private long lease_wait = 0;
+
     private ExecutorService executor = Helper.getBackgroundExecutor(0, "mail");
 
     static final int PURPOSE_CHECK = 1;
@@ -128,6 +137,7 @@ public class EmailService implements AutoCloseable {
     static final int ENCRYPTION_NONE = 2;
 
     final static int DEFAULT_CONNECT_TIMEOUT = 20; // seconds
+    final static int DEFAULT_MAX_CONNECTIONS = 1; // per account
     final static boolean SEPARATE_STORE_CONNECTION = false;
 
     private final static int SEARCH_TIMEOUT = 90 * 1000; // milliseconds
@@ -298,6 +308,10 @@ public class EmailService implements AutoCloseable {
         properties.put("mail." + protocol + ".partialfetch", Boolean.toString(enabled));
     }
 
+    void setCompress(boolean enabled) {
+        properties.put("mail." + protocol + ".compress.enable", Boolean.toString(enabled));
+    }
+
     void setIgnoreBodyStructureSize(boolean enabled) {
         properties.put("mail." + protocol + ".ignorebodystructuresize", Boolean.toString(enabled));
     }
@@ -333,6 +347,56 @@ public class EmailService implements AutoCloseable {
         this.listener = listener;
     }
 
+    void setMaxConnections(int max) {
+        // Idle folders use their own connection and are not included
+        max_connections = Math.max(1, max);
+        leases = new LeaseSemaphore(max_connections);
+        properties.put("mail." + protocol + ".connectionpoolsize",
+                Integer.toString(Math.max(POOL_SIZE, max_connections)));
+    }
+
+    void setUseSocketChannels(boolean enabled) {
+        // Required for IdleManager, bypasses the network bound socket factory
+        properties.put("mail." + protocol + ".usesocketchannels", Boolean.toString(enabled));
+    }
+
+    void reduceMaxConnections() {
+        // Server connection limit reached
+        synchronized (leases) {
+            if (max_connections > 1) {
+                max_connections--;
+                leases.reduce();
+            }
+        }
+    }
+
+    void lease() throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        leases.acquire();
+        synchronized (leases) {
+            leased++;
+            leased_max = Math.max(leased_max, leased);
+            lease_count++;
+            lease_wait += (SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    void release() {
+        synchronized (leases) {
+            leased--;
+        }
+        leases.release();
+    }
+
+    String getPoolStats() {
+        synchronized (leases) {
+            return "connections=" + leased + "/" + max_connections +
+                    " max=" + leased_max +
+                    " leases=" + lease_count +
+                    " wait=" + (lease_count == 0 ? 0 : lease_wait / lease_count) + " ms";
+        }
+    }
+
     public void connect(EntityAccount account) throws MessagingException {
         connect(
                 account.host, account.port,
@@ -1286,4 +1350,14 @@ public class EmailService implements AutoCloseable {
             return getCause().toString();
         }
     }
+
+    private static class LeaseSemaphore extends Semaphore {
+        LeaseSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        void reduce() {
+            reducePermits(1);
+        }
+    }
 }
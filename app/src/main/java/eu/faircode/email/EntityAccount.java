@@ -140,6 +140,8 @@ public class EntityAccount extends EntityOrder implements Serializable {
     @NonNull
     public Boolean ignore_size = false;
     @NonNull
+    public Boolean compress = true;
+    @NonNull
     public Boolean use_date = false; // Date header
     @NonNull
     public Boolean use_received = false; // Received header
@@ -159,6 +161,7 @@ public class EntityAccount extends EntityOrder implements Serializable {
     public Long last_connected;
     public Long backoff_until;
     public Long max_size;
+    public Integer chunk_size; // learned
     public String capabilities;
     public Boolean capability_idle;
     public Boolean capability_utf8;
@@ -305,6 +308,7 @@ public class EntityAccount extends EntityOrder implements Serializable {
         json.put("poll_interval", poll_interval);
         json.put("partial_fetch", partial_fetch);
         json.put("ignore_size", ignore_size);
+        json.put("compress", compress);
         json.put("use_date", use_date);
         json.put("use_received", use_received);
         json.put("conditions", conditions);
@@ -394,6 +398,7 @@ public class EntityAccount extends EntityOrder implements Serializable {
 
         account.partial_fetch = json.optBoolean("partial_fetch", true);
         account.ignore_size = json.optBoolean("ignore_size", false);
+        account.compress = json.optBoolean("compress", true);
         account.use_date = json.optBoolean("use_date", false);
         account.use_received = json.optBoolean("use_received", false);
         account.conditions = json.optString("conditions", null);
@@ -432,6 +437,7 @@ public class EntityAccount extends EntityOrder implements Serializable {
                     this.poll_interval.equals(other.poll_interval) &&
                     this.partial_fetch == other.partial_fetch &&
                     this.ignore_size == other.ignore_size &&
+                    this.compress == other.compress &&
                     this.use_date == other.use_date &&
                     this.use_received == other.use_received &&
                     Objects.equals(this.conditions, other.conditions) &&
@@ -445,6 +451,7 @@ public class EntityAccount extends EntityOrder implements Serializable {
                     Objects.equals(this.last_connected, other.last_connected) &&
                     Objects.equals(this.backoff_until, other.backoff_until) &&
                     Objects.equals(this.max_size, other.max_size) &&
+                    Objects.equals(this.chunk_size, other.chunk_size) &&
                     Objects.equals(this.capabilities, other.capabilities) &&
                     Objects.equals(this.capability_idle, other.capability_idle) &&
                     Objects.equals(this.capability_utf8, other.capability_utf8));
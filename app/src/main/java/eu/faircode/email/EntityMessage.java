@@ -230,6 +230,7 @@ public class EntityMessage implements Serializable {
     public Boolean ui_hide = false;
     @NonNull
     public Boolean ui_found = false;
+    public Integer ui_rank; // search relevance, lower is better
     @NonNull
     public Boolean ui_ignored = false;
     @NonNull
@@ -558,6 +559,13 @@ public class EntityMessage implements Serializable {
         return getFile(context, id);
     }
 
+    static File getTextFile(Context context, Long id) {
+        File dir = new File(context.getFilesDir(), "text");
+        if (!dir.exists())
+            dir.mkdir();
+        return new File(dir, id + "." + HtmlHelper.TEXT_VERSION + ".txt");
+    }
+
     File getFile(Context context, int revision) {
         File dir = new File(context.getFilesDir(), "revision");
         if (!dir.exists())
@@ -727,6 +735,7 @@ public class EntityMessage implements Serializable {
                     this.ui_deleted.equals(other.ui_deleted) &&
                     this.ui_hide.equals(other.ui_hide) &&
                     this.ui_found.equals(other.ui_found) &&
+                    Objects.equals(this.ui_rank, other.ui_rank) &&
                     this.ui_ignored.equals(other.ui_ignored) &&
                     this.ui_silent.equals(other.ui_silent) &&
                     this.ui_browsed.equals(other.ui_browsed) &&
@@ -135,7 +135,9 @@ public class EntityRule {
     }
 
     static boolean needsBody(EntityMessage message, List<EntityRule> rules) {
-        if (message.encrypt != null && !EntityMessage.ENCRYPT_NONE.equals(message.encrypt))
+        // message = null: any message
+        if (message != null &&
+                message.encrypt != null && !EntityMessage.ENCRYPT_NONE.equals(message.encrypt))
             return false;
         return needs(rules, "body");
     }
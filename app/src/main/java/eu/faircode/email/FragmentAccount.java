@@ -124,6 +124,7 @@ public class FragmentAccount extends FragmentBase {
     private EditText etInterval;
     private CheckBox cbPartialFetch;
     private CheckBox cbIgnoreSize;
+    private CheckBox cbCompress;
     private RadioGroup rgDate;
     private CheckBox cbUnmetered;
 
@@ -234,6 +235,7 @@ public class FragmentAccount extends FragmentBase {
         etInterval = view.findViewById(R.id.etInterval);
         cbPartialFetch = view.findViewById(R.id.cbPartialFetch);
         cbIgnoreSize = view.findViewById(R.id.cbIgnoreSize);
+        cbCompress = view.findViewById(R.id.cbCompress);
         rgDate = view.findViewById(R.id.rgDate);
         cbUnmetered = view.findViewById(R.id.cbUnmeteredOnly);
 
@@ -897,6 +899,7 @@ public class FragmentAccount extends FragmentBase {
         args.putString("interval", etInterval.getText().toString());
         args.putBoolean("partial_fetch", cbPartialFetch.isChecked());
         args.putBoolean("ignore_size", cbIgnoreSize.isChecked());
+        args.putBoolean("compress", cbCompress.isChecked());
         args.putBoolean("use_date", rgDate.getCheckedRadioButtonId() == R.id.radio_date_header);
         args.putBoolean("use_received", rgDate.getCheckedRadioButtonId() == R.id.radio_received_header);
         args.putBoolean("unmetered", cbUnmetered.isChecked());
@@ -968,6 +971,7 @@ public class FragmentAccount extends FragmentBase {
                 String interval = args.getString("interval");
                 boolean partial_fetch = args.getBoolean("partial_fetch");
                 boolean ignore_size = args.getBoolean("ignore_size");
+                boolean compress = args.getBoolean("compress");
                 boolean use_date = args.getBoolean("use_date");
                 boolean use_received = args.getBoolean("use_received");
                 boolean unmetered = args.getBoolean("unmetered");
@@ -1073,6 +1077,8 @@ public class FragmentAccount extends FragmentBase {
                         return true;
                     if (!Objects.equals(account.ignore_size, ignore_size))
                         return true;
+                    if (!Objects.equals(account.compress, compress))
+                        return true;
                     if (!Objects.equals(account.use_date, use_date))
                         return true;
                     if (!Objects.equals(account.use_received, use_received))
@@ -1217,6 +1223,7 @@ public class FragmentAccount extends FragmentBase {
 
                     account.partial_fetch = partial_fetch;
                     account.ignore_size = ignore_size;
+                    account.compress = compress;
                     account.use_date = use_date;
                     account.use_received = use_received;
 
@@ -1580,6 +1587,7 @@ public class FragmentAccount extends FragmentBase {
                     etInterval.setText(account == null ? "" : Long.toString(account.poll_interval));
                     cbPartialFetch.setChecked(account == null ? true : account.partial_fetch);
                     cbIgnoreSize.setChecked(account == null ? false : account.ignore_size);
+                    cbCompress.setChecked(account == null ? true : account.compress);
                     cbUnmetered.setChecked(jcondition.optBoolean("unmetered"));
 
                     if (account != null && account.use_date)
@@ -58,8 +58,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
-import io.requery.android.database.sqlite.SQLiteDatabase;
-
 public class FragmentDialogSearch extends FragmentDialogBase {
     private ImageButton ibMore;
     private TextView tvMore;
@@ -78,6 +76,7 @@ public class FragmentDialogSearch extends FragmentDialogBase {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean fts = prefs.getBoolean("fts", false);
         boolean last_fts = prefs.getBoolean("last_fts", true);
+        boolean last_fts_ranked = prefs.getBoolean("last_fts_ranked", false);
         boolean last_search_senders = prefs.getBoolean("last_search_senders", true);
         boolean last_search_recipients = prefs.getBoolean("last_search_recipients", true);
         boolean last_search_subject = prefs.getBoolean("last_search_subject", true);
@@ -105,6 +104,7 @@ public class FragmentDialogSearch extends FragmentDialogBase {
         ibMore = dview.findViewById(R.id.ibMore);
         tvMore = dview.findViewById(R.id.tvMore);
         CheckBox cbSearchIndex = dview.findViewById(R.id.cbSearchIndex);
+        CheckBox cbSearchRanked = dview.findViewById(R.id.cbSearchRanked);
         CheckBox cbSenders = dview.findViewById(R.id.cbSenders);
         CheckBox cbRecipients = dview.findViewById(R.id.cbRecipients);
         CheckBox cbSubject = dview.findViewById(R.id.cbSubject);
@@ -154,16 +154,26 @@ public class FragmentDialogSearch extends FragmentDialogBase {
                     return cursor;
 
                 if (cbSearchIndex.isEnabled() && cbSearchIndex.isChecked()) {
-                    SQLiteDatabase db = FtsDbHelper.getInstance(context);
-                    List<String> suggestions = FtsDbHelper.getSuggestions(
-                            db,
-                            typed + "%",
+                    List<String> suggestions = SearchSuggestions.getTerms(
+                            context,
+                            typed.toString(),
                             MAX_SUGGESTIONS);
                     for (int i = 0; i < suggestions.size(); i++)
                         cursor.addRow(new Object[]{i + 1, suggestions.get(i)});
                     return cursor;
                 }
 
+                if (account < 0 && folder < 0) {
+                    List<String> suggestions = SearchSuggestions.getFrequent(
+                            context,
+                            typed.toString(),
+                            MAX_SUGGESTIONS);
+                    for (int i = 0; i < suggestions.size(); i++)
+                        cursor.addRow(new Object[]{i + 1, suggestions.get(i)});
+                    if (suggestions.size() > 0)
+                        return cursor;
+                }
+
                 DB db = DB.getInstance(context);
                 return db.message().getSuggestions(
                         account < 0 ? null : account,
@@ -267,6 +277,14 @@ public class FragmentDialogSearch extends FragmentDialogBase {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 prefs.edit().putBoolean("last_fts", isChecked).apply();
+                cbSearchRanked.setEnabled(isChecked);
+            }
+        });
+
+        cbSearchRanked.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                prefs.edit().putBoolean("last_fts_ranked", isChecked).apply();
             }
         });
 
@@ -371,6 +389,8 @@ public class FragmentDialogSearch extends FragmentDialogBase {
         ibMore.setImageLevel(1);
         cbSearchIndex.setChecked(last_fts && fts && pro);
         cbSearchIndex.setEnabled(fts && pro);
+        cbSearchRanked.setChecked(last_fts_ranked);
+        cbSearchRanked.setEnabled(cbSearchIndex.isChecked());
         cbSenders.setChecked(last_search_senders);
         cbRecipients.setChecked(last_search_recipients);
         cbSubject.setChecked(last_search_subject);
@@ -404,6 +424,7 @@ public class FragmentDialogSearch extends FragmentDialogBase {
                             criteria.query = null;
 
                         criteria.fts = (cbSearchIndex.isChecked() && cbSearchIndex.isEnabled());
+                        criteria.fts_ranked = (criteria.fts && cbSearchRanked.isChecked());
                         criteria.in_senders = cbSenders.isChecked();
                         criteria.in_recipients = cbRecipients.isChecked();
                         criteria.in_subject = cbSubject.isChecked();
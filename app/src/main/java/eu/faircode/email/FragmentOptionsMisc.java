@@ -102,11 +102,13 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swExternalAnswer;
     private SwitchCompat swShortcuts;
     private SwitchCompat swFts;
+    private SwitchCompat swFtsTrigram;
     private SwitchCompat swClassification;
     private TextView tvClassMinProbability;
     private SeekBar sbClassMinProbability;
     private TextView tvClassMinDifference;
     private SeekBar sbClassMinDifference;
+    private Button btnClassifierTrain;
     private ImageButton ibClassification;
     private TextView tvFtsIndexed;
     private TextView tvFtsPro;
@@ -155,6 +157,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SeekBar sbSqliteCache;
     private TextView tvChunkSize;
     private SeekBar sbChunkSize;
+    private TextView tvFetchWindow;
+    private SeekBar sbFetchWindow;
+    private TextView tvMaxConnections;
+    private SeekBar sbMaxConnections;
+    private TextView tvSyncTransaction;
+    private SeekBar sbSyncTransaction;
     private TextView tvThreadRange;
     private SeekBar sbThreadRange;
     private ImageButton ibSqliteCache;
@@ -163,6 +171,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swBrowserZoom;
     private SwitchCompat swShowRecent;
     private SwitchCompat swModSeq;
+    private SwitchCompat swQResync;
     private SwitchCompat swUid;
     private SwitchCompat swExpunge;
     private SwitchCompat swUidExpunge;
@@ -174,6 +183,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swKeepAlivePoll;
     private SwitchCompat swEmptyPool;
     private SwitchCompat swIdleDone;
+    private SwitchCompat swIdleManager;
     private SwitchCompat swLogarithmicBackoff;
     private SwitchCompat swExactAlarms;
     private SwitchCompat swInfra;
@@ -193,6 +203,8 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private Button btnGC;
     private Button btnCharsets;
     private Button btnFontMap;
+    private Button btnSearchBenchmark;
+    private Button btnSyncBenchmark;
     private Button btnFiles;
     private Button btnUris;
     private Button btnAllPermissions;
@@ -207,7 +219,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private final static long MIN_FILE_SIZE = 1024 * 1024L;
 
     private final static String[] RESET_OPTIONS = new String[]{
-            "sort_answers", "shortcuts", "fts",
+            "sort_answers", "shortcuts", "fts", "fts_trigram",
             "classification", "class_min_probability", "class_min_difference",
             "language", "deepl_enabled",
             "updates", "weekly", "show_changelog",
@@ -216,10 +228,10 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             "test2", "test3", "test4", "test5",
             "work_manager", // "external_storage",
             "query_threads", "wal", "sqlite_checkpoints", "sqlite_analyze", "sqlite_cache",
-            "chunk_size", "thread_range", "undo_manager", "webview_legacy", "browser_zoom", "show_recent",
-            "use_modseq", "uid_command", "perform_expunge", "uid_expunge",
+            "chunk_size", "fetch_window", "max_connections", "sync_transaction", "thread_range", "undo_manager", "webview_legacy", "browser_zoom", "show_recent",
+            "use_modseq", "use_qresync", "uid_command", "perform_expunge", "uid_expunge",
             "auth_plain", "auth_login", "auth_ntlm", "auth_sasl", "auth_apop",
-            "keep_alive_poll", "empty_pool", "idle_done", "logarithmic_backoff",
+            "keep_alive_poll", "empty_pool", "idle_done", "idle_manager", "logarithmic_backoff",
             "exact_alarms", "infra", "dkim_verify", "dup_msgids", "test_iab"
     };
 
@@ -278,12 +290,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swExternalAnswer = view.findViewById(R.id.swExternalAnswer);
         swShortcuts = view.findViewById(R.id.swShortcuts);
         swFts = view.findViewById(R.id.swFts);
+        swFtsTrigram = view.findViewById(R.id.swFtsTrigram);
         swClassification = view.findViewById(R.id.swClassification);
         ibClassification = view.findViewById(R.id.ibClassification);
         tvClassMinProbability = view.findViewById(R.id.tvClassMinProbability);
         sbClassMinProbability = view.findViewById(R.id.sbClassMinProbability);
         tvClassMinDifference = view.findViewById(R.id.tvClassMinDifference);
         sbClassMinDifference = view.findViewById(R.id.sbClassMinDifference);
+        btnClassifierTrain = view.findViewById(R.id.btnClassifierTrain);
         tvFtsIndexed = view.findViewById(R.id.tvFtsIndexed);
         tvFtsPro = view.findViewById(R.id.tvFtsPro);
         spLanguage = view.findViewById(R.id.spLanguage);
@@ -332,6 +346,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         ibSqliteCache = view.findViewById(R.id.ibSqliteCache);
         tvChunkSize = view.findViewById(R.id.tvChunkSize);
         sbChunkSize = view.findViewById(R.id.sbChunkSize);
+        tvFetchWindow = view.findViewById(R.id.tvFetchWindow);
+        sbFetchWindow = view.findViewById(R.id.sbFetchWindow);
+        tvMaxConnections = view.findViewById(R.id.tvMaxConnections);
+        sbMaxConnections = view.findViewById(R.id.sbMaxConnections);
+        tvSyncTransaction = view.findViewById(R.id.tvSyncTransaction);
+        sbSyncTransaction = view.findViewById(R.id.sbSyncTransaction);
         tvThreadRange = view.findViewById(R.id.tvThreadRange);
         sbThreadRange = view.findViewById(R.id.sbThreadRange);
         swUndoManager = view.findViewById(R.id.swUndoManager);
@@ -339,6 +359,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swBrowserZoom = view.findViewById(R.id.swBrowserZoom);
         swShowRecent = view.findViewById(R.id.swShowRecent);
         swModSeq = view.findViewById(R.id.swModSeq);
+        swQResync = view.findViewById(R.id.swQResync);
         swUid = view.findViewById(R.id.swUid);
         swExpunge = view.findViewById(R.id.swExpunge);
         swUidExpunge = view.findViewById(R.id.swUidExpunge);
@@ -350,6 +371,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swKeepAlivePoll = view.findViewById(R.id.swKeepAlivePoll);
         swEmptyPool = view.findViewById(R.id.swEmptyPool);
         swIdleDone = view.findViewById(R.id.swIdleDone);
+        swIdleManager = view.findViewById(R.id.swIdleManager);
         swLogarithmicBackoff = view.findViewById(R.id.swLogarithmicBackoff);
         swExactAlarms = view.findViewById(R.id.swExactAlarms);
         swInfra = view.findViewById(R.id.swInfra);
@@ -369,6 +391,8 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         btnGC = view.findViewById(R.id.btnGC);
         btnCharsets = view.findViewById(R.id.btnCharsets);
         btnFontMap = view.findViewById(R.id.btnFontMap);
+        btnSearchBenchmark = view.findViewById(R.id.btnSearchBenchmark);
+        btnSyncBenchmark = view.findViewById(R.id.btnSyncBenchmark);
         btnFiles = view.findViewById(R.id.btnFiles);
         btnUris = view.findViewById(R.id.btnUris);
         btnAllPermissions = view.findViewById(R.id.btnAllPermissions);
@@ -431,6 +455,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
                 prefs.edit().putBoolean("fts", checked).apply();
+                swFtsTrigram.setEnabled(checked);
 
                 WorkerFts.init(getContext(), true);
 
@@ -449,6 +474,9 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                                 FtsDbHelper.delete(context);
                             }
 
+                            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                            prefs.edit().remove("fts_saved").apply();
+
                             DB db = DB.getInstance(context);
                             db.message().resetFts();
 
@@ -466,13 +494,49 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
 
         Helper.linkPro(tvFtsPro);
 
+        swFtsTrigram.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("fts_trigram", checked).apply();
+
+                // Reindex to add or remove the trigrams
+                Bundle args = new Bundle();
+
+                new SimpleTask<Void>() {
+                    @Override
+                    protected Void onExecute(Context context, Bundle args) {
+                        SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
+                        FtsDbHelper.delete(sdb);
+                        FtsDbHelper.optimize(sdb);
+
+                        DB db = DB.getInstance(context);
+                        db.message().resetFts();
+
+                        return null;
+                    }
+
+                    @Override
+                    protected void onExecuted(Bundle args, Void data) {
+                        WorkerFts.init(getContext(), true);
+                    }
+
+                    @Override
+                    protected void onException(Bundle args, Throwable ex) {
+                        Log.unexpectedError(getParentFragmentManager(), ex);
+                    }
+                }.execute(FragmentOptionsMisc.this, args, "fts:trigram");
+            }
+        });
+
         swClassification.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             private int count = 0;
 
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean checked) {
                 prefs.edit().putBoolean("classification", checked).apply();
+                btnClassifierTrain.setEnabled(checked);
                 if (!checked) {
+                    WorkerClassifier.cancel(buttonView.getContext());
                     count++;
                     if (count >= 3) {
                         count = 0;
@@ -524,6 +588,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        btnClassifierTrain.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                WorkerClassifier.init(v.getContext());
+                ToastEx.makeText(v.getContext(), R.string.title_advanced_classifier_train_started, Toast.LENGTH_LONG).show();
+            }
+        });
+
         spLanguage.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> adapterView, View view, int position, long id) {
@@ -1003,6 +1075,75 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                 // Do nothing
             }
 
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Learn again, starting at the new chunk size
+                new SimpleTask<Void>() {
+                    @Override
+                    protected Void onExecute(Context context, Bundle args) {
+                        ChunkSizeController.reset(context);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onException(Bundle args, Throwable ex) {
+                        Log.unexpectedError(getParentFragmentManager(), ex);
+                    }
+                }.execute(FragmentOptionsMisc.this, new Bundle(), "chunk_size:reset");
+            }
+        });
+
+        sbFetchWindow.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (progress < 1)
+                    progress = 1;
+                prefs.edit().putInt("fetch_window", progress).apply();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+        });
+
+        sbMaxConnections.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (progress < 1)
+                    progress = 1;
+                prefs.edit().putInt("max_connections", progress).apply();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+        });
+
+        sbSyncTransaction.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (progress < 1)
+                    progress = 1;
+                prefs.edit().putInt("sync_transaction", progress).apply();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 // Do nothing
@@ -1064,6 +1205,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swQResync.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("use_qresync", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "use_qresync");
+            }
+        });
+
         swUid.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
@@ -1145,6 +1294,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swIdleManager.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("idle_manager", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "idle_manager");
+            }
+        });
+
         swLogarithmicBackoff.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
@@ -1245,6 +1402,126 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        btnSearchBenchmark.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String[] sizes = new String[SearchBenchmark.SIZES.length];
+                for (int i = 0; i < sizes.length; i++)
+                    sizes[i] = NF.format(SearchBenchmark.SIZES[i]);
+
+                new AlertDialog.Builder(getContext())
+                        .setIcon(R.drawable.twotone_info_24)
+                        .setTitle(R.string.title_advanced_search_benchmark)
+                        .setItems(sizes, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                Bundle args = new Bundle();
+                                args.putInt("size", SearchBenchmark.SIZES[which]);
+
+                                new SimpleTask<String>() {
+                                    @Override
+                                    protected void onPreExecute(Bundle args) {
+                                        btnSearchBenchmark.setEnabled(false);
+                                    }
+
+                                    @Override
+                                    protected void onPostExecute(Bundle args) {
+                                        btnSearchBenchmark.setEnabled(true);
+                                    }
+
+                                    @Override
+                                    protected String onExecute(Context context, Bundle args) {
+                                        int size = args.getInt("size");
+                                        return SearchBenchmark.run(context, size);
+                                    }
+
+                                    @Override
+                                    protected void onExecuted(Bundle args, String result) {
+                                        new AlertDialog.Builder(getContext())
+                                                .setIcon(R.drawable.twotone_info_24)
+                                                .setTitle(R.string.title_advanced_search_benchmark)
+                                                .setMessage(result)
+                                                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                                                    @Override
+                                                    public void onClick(DialogInterface dialog, int which) {
+                                                        // Do nothing
+                                                    }
+                                                })
+                                                .show();
+                                    }
+
+                                    @Override
+                                    protected void onException(Bundle args, Throwable ex) {
+                                        Log.unexpectedError(getParentFragmentManager(), ex);
+                                    }
+                                }.execute(FragmentOptionsMisc.this, args, "setup:search:benchmark");
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            }
+        });
+
+        btnSyncBenchmark.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String[] sizes = new String[SyncBenchmark.SIZES.length];
+                for (int i = 0; i < sizes.length; i++)
+                    sizes[i] = NF.format(SyncBenchmark.SIZES[i]);
+
+                new AlertDialog.Builder(getContext())
+                        .setIcon(R.drawable.twotone_info_24)
+                        .setTitle(R.string.title_advanced_sync_benchmark)
+                        .setItems(sizes, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                Bundle args = new Bundle();
+                                args.putInt("size", SyncBenchmark.SIZES[which]);
+
+                                new SimpleTask<String>() {
+                                    @Override
+                                    protected void onPreExecute(Bundle args) {
+                                        btnSyncBenchmark.setEnabled(false);
+                                    }
+
+                                    @Override
+                                    protected void onPostExecute(Bundle args) {
+                                        btnSyncBenchmark.setEnabled(true);
+                                    }
+
+                                    @Override
+                                    protected String onExecute(Context context, Bundle args) throws Throwable {
+                                        int size = args.getInt("size");
+                                        return SyncBenchmark.run(context, size);
+                                    }
+
+                                    @Override
+                                    protected void onExecuted(Bundle args, String result) {
+                                        new AlertDialog.Builder(getContext())
+                                                .setIcon(R.drawable.twotone_info_24)
+                                                .setTitle(R.string.title_advanced_sync_benchmark)
+                                                .setMessage(result)
+                                                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                                                    @Override
+                                                    public void onClick(DialogInterface dialog, int which) {
+                                                        // Do nothing
+                                                    }
+                                                })
+                                                .show();
+                                    }
+
+                                    @Override
+                                    protected void onException(Bundle args, Throwable ex) {
+                                        Log.unexpectedError(getParentFragmentManager(), ex);
+                                    }
+                                }.execute(FragmentOptionsMisc.this, args, "setup:sync:benchmark");
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            }
+        });
+
         btnFontMap.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -1490,13 +1767,21 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
 
             @Override
             public void onChanged(TupleFtsStats stats) {
+                long saved = prefs.getLong("fts_saved", 0);
+                Float throughput = WorkerFts.getThroughput(); // messages/second
                 if (stats == null)
                     tvFtsIndexed.setText(null);
                 else if (last == null || !last.equals(stats))
                     tvFtsIndexed.setText(getString(R.string.title_advanced_fts_indexed,
                             stats.fts,
                             stats.total,
-                            Helper.humanReadableByteCount(FtsDbHelper.size(tvFtsIndexed.getContext()))));
+                            Helper.humanReadableByteCount(FtsDbHelper.size(tvFtsIndexed.getContext()))) +
+                            (saved <= 0 ? "" :
+                                    "\n" + getString(R.string.title_advanced_fts_saved,
+                                            Helper.humanReadableByteCount(saved))) +
+                            (throughput == null || stats.getBacklog() == 0 ? "" :
+                                    "\n" + getString(R.string.title_advanced_fts_rate,
+                                            Math.round(throughput), stats.getBacklog())));
                 last = stats;
             }
         });
@@ -1688,8 +1973,11 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swExternalAnswer.setChecked(Helper.isComponentEnabled(getContext(), ActivityAnswer.class));
         swShortcuts.setChecked(prefs.getBoolean("shortcuts", true));
         swFts.setChecked(prefs.getBoolean("fts", false));
+        swFtsTrigram.setChecked(prefs.getBoolean("fts_trigram", false));
+        swFtsTrigram.setEnabled(swFts.isChecked());
 
         swClassification.setChecked(prefs.getBoolean("classification", false));
+        btnClassifierTrain.setEnabled(swClassification.isChecked());
 
         int class_min_chance = prefs.getInt("class_min_probability", 15);
         tvClassMinProbability.setText(getString(R.string.title_advanced_class_min_chance, NF.format(class_min_chance)));
@@ -1763,6 +2051,18 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         tvChunkSize.setText(getString(R.string.title_advanced_chunk_size, chunk_size));
         sbChunkSize.setProgress(chunk_size);
 
+        int fetch_window = prefs.getInt("fetch_window", Core.DEFAULT_FETCH_WINDOW);
+        tvFetchWindow.setText(getString(R.string.title_advanced_fetch_window, fetch_window));
+        sbFetchWindow.setProgress(fetch_window);
+
+        int max_connections = prefs.getInt("max_connections", EmailService.DEFAULT_MAX_CONNECTIONS);
+        tvMaxConnections.setText(getString(R.string.title_advanced_max_connections, max_connections));
+        sbMaxConnections.setProgress(max_connections);
+
+        int sync_transaction = prefs.getInt("sync_transaction", Core.DEFAULT_SYNC_TRANSACTION);
+        tvSyncTransaction.setText(getString(R.string.title_advanced_sync_transaction, sync_transaction));
+        sbSyncTransaction.setProgress(sync_transaction);
+
         int thread_range = prefs.getInt("thread_range", MessageHelper.DEFAULT_THREAD_RANGE);
         int range = (int) Math.pow(2, thread_range);
         tvThreadRange.setText(getString(R.string.title_advanced_thread_range, range));
@@ -1773,6 +2073,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swBrowserZoom.setChecked(prefs.getBoolean("browser_zoom", false));
         swShowRecent.setChecked(prefs.getBoolean("show_recent", false));
         swModSeq.setChecked(prefs.getBoolean("use_modseq", true));
+        swQResync.setChecked(prefs.getBoolean("use_qresync", true));
         swUid.setChecked(prefs.getBoolean("uid_command", false));
         swExpunge.setChecked(prefs.getBoolean("perform_expunge", true));
         swUidExpunge.setChecked(prefs.getBoolean("uid_expunge", false));
@@ -1784,6 +2085,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swKeepAlivePoll.setChecked(prefs.getBoolean("keep_alive_poll", false));
         swEmptyPool.setChecked(prefs.getBoolean("empty_pool", true));
         swIdleDone.setChecked(prefs.getBoolean("idle_done", true));
+        swIdleManager.setChecked(prefs.getBoolean("idle_manager", false));
         swLogarithmicBackoff.setChecked(prefs.getBoolean("logarithmic_backoff", true));
         swExactAlarms.setChecked(prefs.getBoolean("exact_alarms", true));
         swInfra.setChecked(prefs.getBoolean("infra", false));
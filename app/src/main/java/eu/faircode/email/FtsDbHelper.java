@@ -25,9 +25,16 @@ import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.mail.Address;
 
@@ -41,97 +48,229 @@ public class FtsDbHelper extends SQLiteOpenHelper {
     @SuppressLint("StaticFieldLeak")
     private static FtsDbHelper instance = null;
 
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 10;
     private static final String DATABASE_NAME = "fts.db";
 
-    private FtsDbHelper(Context context) {
-        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    // Relevance weights of the indexed columns
+    private static final double BM25_ADDRESS = 5.0;
+    private static final double BM25_SUBJECT = 10.0;
+    private static final double BM25_KEYWORD = 5.0;
+    private static final double BM25_TEXT = 1.0;
+    private static final double BM25_NOTES = 2.0;
+    private static final double BM25_ATTACHMENT = 0.5;
+
+    private FtsDbHelper(Context context, String name) {
+        super(context.getApplicationContext(), name, null, DATABASE_VERSION);
         this.context = context.getApplicationContext();
     }
 
     static SQLiteDatabase getInstance(Context context) {
         if (instance == null)
-            instance = new FtsDbHelper(context);
+            instance = new FtsDbHelper(context, DATABASE_NAME);
         return instance.getWritableDatabase();
     }
 
+    static FtsDbHelper getBenchmarkInstance(Context context, String name) {
+        // Throwaway database, which is created from scratch
+        return new FtsDbHelper(context, name);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i("FTS create");
+
+        // The index tables are contentless, so FTS5 never reads this table
+        // The text is stored compressed and is used only to remove the text from the index again
+        // Snippets and highlights should be taken from the message files of displayed hits
+        db.execSQL("CREATE TABLE `message_content`" +
+                " (`id` INTEGER PRIMARY KEY" +
+                ", `account` INTEGER" +
+                ", `folder` INTEGER" +
+                ", `time` INTEGER" +
+                ", `sender` TEXT" +
+                ", `recipient` TEXT" +
+                ", `subject` TEXT" +
+                ", `keyword` TEXT" +
+                ", `text` BLOB" +
+                ", `notes` TEXT" +
+                ", `attachment` BLOB" +
+                ", `size` INTEGER" +
+                ", `trigram` INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX `message_content_time` ON `message_content` (`time`)");
+
+        // https://www.sqlite.org/fts5.html#contentless_tables
         db.execSQL("CREATE VIRTUAL TABLE `message`" +
                 " USING fts5" +
-                " (`account` UNINDEXED" +
-                ", `folder` UNINDEXED" +
-                ", `time` UNINDEXED" +
-                ", `address`" +
+                " (`sender`" +
+                ", `recipient`" +
                 ", `subject`" +
                 ", `keyword`" +
                 ", `text`" +
                 ", `notes`" +
+                ", `attachment`" +
+                ", content = ''" +
                 ", tokenize = \"unicode61 remove_diacritics 2\")");
         // https://www.sqlite.org/fts5.html#unicode61_tokenizer
         // https://unicode.org/reports/tr29/
 
         // https://www.sqlite.org/fts5.html#the_fts5vocab_virtual_table_module
         db.execSQL("CREATE VIRTUAL TABLE message_terms USING fts5vocab('message', 'row');");
+
+        // https://www.sqlite.org/fts5.html#the_trigram_tokenizer
+        db.execSQL("CREATE VIRTUAL TABLE `message_trigram`" +
+                " USING fts5" +
+                " (`sender`" +
+                ", `recipient`" +
+                ", `subject`" +
+                ", `keyword`" +
+                ", `text`" +
+                ", `notes`" +
+                ", `attachment`" +
+                ", content = ''" +
+                ", tokenize = \"trigram\")");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.i("FTS upgrade from " + oldVersion + " to " + newVersion);
 
-        db.execSQL("DROP TABLE IF EXISTS `message`");
         db.execSQL("DROP TABLE IF EXISTS `message_terms`");
+        db.execSQL("DROP TABLE IF EXISTS `message`");
+        db.execSQL("DROP TABLE IF EXISTS `message_trigram`");
+        db.execSQL("DROP TABLE IF EXISTS `message_content`");
 
         onCreate(db);
 
         DB.getInstance(context).message().resetFts();
     }
 
-    static void insert(SQLiteDatabase db, EntityMessage message, String text) {
-        Log.i("FTS insert id=" + message.id);
-        List<Address> address = new ArrayList<>();
-        if (message.from != null)
-            address.addAll(Arrays.asList(message.from));
+    static void insert(SQLiteDatabase db, EntityMessage message, String text, String attachment, boolean trigram) {
+        Log.i("FTS insert id=" + message.id + " trigram=" + trigram);
+        List<Address> recipient = new ArrayList<>();
         if (message.to != null)
-            address.addAll(Arrays.asList(message.to));
+            recipient.addAll(Arrays.asList(message.to));
         if (message.cc != null)
-            address.addAll(Arrays.asList(message.cc));
+            recipient.addAll(Arrays.asList(message.cc));
         if (message.bcc != null)
-            address.addAll(Arrays.asList(message.bcc));
+            recipient.addAll(Arrays.asList(message.bcc));
 
         delete(db, message.id);
 
         ContentValues cv = new ContentValues();
-        cv.put("rowid", message.id);
-        cv.put("account", message.account);
-        cv.put("folder", message.folder);
-        cv.put("time", message.received);
-        cv.put("address", MessageHelper.formatAddresses(address.toArray(new Address[0]), true, false));
+        cv.put("sender", MessageHelper.formatAddresses(message.from == null ? new Address[0] : message.from, true, false));
+        cv.put("recipient", MessageHelper.formatAddresses(recipient.toArray(new Address[0]), true, false));
         cv.put("subject", message.subject == null ? "" : message.subject);
         cv.put("keyword", TextUtils.join(", ", message.keywords));
-        cv.put("text", text);
         cv.put("notes", message.notes);
+
+        ContentValues content = new ContentValues(cv);
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        content.put("id", message.id);
+        content.put("account", message.account);
+        content.put("folder", message.folder);
+        content.put("time", message.received);
+        content.put("text", compress(raw));
+        byte[] araw = attachment.getBytes(StandardCharsets.UTF_8);
+        content.put("attachment", compress(araw));
+        content.put("size", raw.length + araw.length);
+        content.put("trigram", trigram);
+        db.insert("message_content", SQLiteDatabase.CONFLICT_FAIL, content);
+
+        cv.put("rowid", message.id);
+        cv.put("text", text);
+        cv.put("attachment", attachment);
         db.insert("message", SQLiteDatabase.CONFLICT_FAIL, cv);
+        if (trigram)
+            db.insert("message_trigram", SQLiteDatabase.CONFLICT_FAIL, cv);
     }
 
     static void delete(SQLiteDatabase db) {
-        db.delete("message", null, null);
+        SearchSuggestions.invalidate();
+        db.execSQL("INSERT INTO message (message) VALUES ('delete-all')");
+        db.execSQL("INSERT INTO message_trigram (message_trigram) VALUES ('delete-all')");
+        db.delete("message_content", null, null);
     }
 
     static void delete(SQLiteDatabase db, long id) {
-        db.delete("message", "rowid = ?", new Object[]{id});
+        // Contentless tables require the indexed values to remove a row from the index
+        try (Cursor cursor = db.query(
+                "SELECT sender, recipient, subject, keyword, text, notes, trigram, attachment" +
+                        " FROM message_content" +
+                        " WHERE id = ?",
+                new Object[]{id})) {
+            if (cursor != null && cursor.moveToNext())
+                try {
+                    String text = new String(decompress(cursor.getBlob(4)), StandardCharsets.UTF_8);
+                    String attachment = new String(decompress(cursor.getBlob(7)), StandardCharsets.UTF_8);
+                    Object[] values = new Object[]{id,
+                            cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                            text, cursor.getString(5), attachment};
+                    db.execSQL("INSERT INTO message" +
+                            " (message, rowid, sender, recipient, subject, keyword, text, notes, attachment)" +
+                            " VALUES ('delete', ?, ?, ?, ?, ?, ?, ?, ?)", values);
+                    if (cursor.getInt(6) != 0)
+                        db.execSQL("INSERT INTO message_trigram" +
+                                " (message_trigram, rowid, sender, recipient, subject, keyword, text, notes, attachment)" +
+                                " VALUES ('delete', ?, ?, ?, ?, ?, ?, ?, ?)", values);
+                } catch (IOException ex) {
+                    Log.e(ex);
+                }
+        }
+        db.delete("message_content", "id = ?", new Object[]{id});
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                bos.write(buffer, 0, deflater.deflate(buffer));
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
     }
 
-    static List<String> getSuggestions(SQLiteDatabase db, String query, int max) {
+    private static byte[] decompress(byte[] data) throws IOException {
+        if (data == null)
+            return new byte[0];
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(data))) {
+            return Helper.readBytes(is);
+        }
+    }
+
+    static List<String> getTerms(SQLiteDatabase db, int max) {
         List<String> result = new ArrayList<>();
 
         try (Cursor cursor = db.query(
                 "SELECT term FROM message_terms" +
-                        " WHERE term LIKE ?" +
-                        " ORDER BY cnt" +
+                        " ORDER BY cnt DESC" +
                         " LIMIT " + max,
-                new Object[]{query})) {
+                new Object[0])) {
+            while (cursor != null && cursor.moveToNext())
+                result.add(cursor.getString(0));
+        }
+
+        return result;
+    }
+
+    static List<String> getTerms(SQLiteDatabase db, String prefix, int max) {
+        List<String> result = new ArrayList<>();
+        if (TextUtils.isEmpty(prefix))
+            return result;
+
+        // Term range constraints are handled by the vocabulary table
+        char last = prefix.charAt(prefix.length() - 1);
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+        try (Cursor cursor = db.query(
+                "SELECT term FROM message_terms" +
+                        " WHERE term >= ? AND term < ?" +
+                        " ORDER BY cnt DESC" +
+                        " LIMIT " + max,
+                new Object[]{prefix, end})) {
             while (cursor != null && cursor.moveToNext())
                 result.add(cursor.getString(0));
         }
@@ -142,7 +281,8 @@ public class FtsDbHelper extends SQLiteOpenHelper {
     static List<Long> match(
             SQLiteDatabase db,
             Long account, Long folder, long[] exclude,
-            BoundaryCallbackMessages.SearchCriteria criteria) {
+            BoundaryCallbackMessages.SearchCriteria criteria,
+            int offset, int limit) {
 
         List<String> word = new ArrayList<>();
         List<String> plus = new ArrayList<>();
@@ -199,13 +339,38 @@ public class FtsDbHelper extends SQLiteOpenHelper {
 
         String search = (sb.length() > 0 ? sb.toString() : escape(criteria.query));
 
+        // The trigram index matches substrings, not words
+        String table = (criteria.fts ? "message" : "message_trigram");
+        if (!criteria.fts)
+            search = escape(criteria.query);
+
+        // https://www.sqlite.org/fts5.html#fts5_column_filters
+        List<String> columns = new ArrayList<>();
+        if (criteria.in_senders)
+            columns.add("sender");
+        if (criteria.in_recipients)
+            columns.add("recipient");
+        if (criteria.in_subject)
+            columns.add("subject");
+        if (criteria.in_keywords)
+            columns.add("keyword");
+        if (criteria.in_message) {
+            columns.add("text");
+            columns.add("attachment");
+        }
+        if (criteria.in_notes)
+            columns.add("notes");
+        if (columns.size() > 0)
+            search = "{" + TextUtils.join(" ", columns) + "} : (" + search + ")";
+
+        // The contentless index has the row ids only
         String select = "";
         if (account != null)
-            select += "account = " + account + " AND ";
+            select += "c.account = " + account + " AND ";
         if (folder != null)
-            select += "folder = " + folder + " AND ";
+            select += "c.folder = " + folder + " AND ";
         if (exclude.length > 0) {
-            select += "NOT folder IN (";
+            select += "NOT c.folder IN (";
             for (int i = 0; i < exclude.length; i++) {
                 if (i > 0)
                     select += ", ";
@@ -214,17 +379,27 @@ public class FtsDbHelper extends SQLiteOpenHelper {
             select += ") AND ";
         }
         if (criteria.after != null)
-            select += "time > " + criteria.after + " AND ";
+            select += "c.time > " + criteria.after + " AND ";
         if (criteria.before != null)
-            select += "time < " + criteria.before + " AND ";
+            select += "c.time < " + criteria.before + " AND ";
+
+        // https://www.sqlite.org/fts5.html#the_bm25_function
+        String order = (criteria.fts && criteria.fts_ranked
+                ? "bm25(message" +
+                ", " + BM25_ADDRESS + ", " + BM25_ADDRESS + ", " + BM25_SUBJECT + ", " + BM25_KEYWORD +
+                ", " + BM25_TEXT + ", " + BM25_NOTES + ", " + BM25_ATTACHMENT + ")"
+                : "c.time DESC");
 
-        Log.i("FTS select=" + select + " search=" + search);
+        Log.i("FTS table=" + table + " select=" + select + " search=" + search + " order=" + order +
+                " offset=" + offset + " limit=" + limit);
         List<Long> result = new ArrayList<>();
         try (Cursor cursor = db.query(
-                "message", new String[]{"rowid"},
-                select + "message MATCH ?",
-                new Object[]{search},
-                null, null, "time DESC", null)) {
+                "SELECT " + table + ".rowid FROM " + table +
+                        " JOIN message_content AS c ON c.id = " + table + ".rowid" +
+                        " WHERE " + select + table + " MATCH ?" +
+                        " ORDER BY " + order +
+                        (limit > 0 ? " LIMIT " + limit + " OFFSET " + offset : ""),
+                new Object[]{search})) {
             while (cursor != null && cursor.moveToNext())
                 result.add(cursor.getLong(0));
         }
@@ -238,7 +413,7 @@ public class FtsDbHelper extends SQLiteOpenHelper {
 
     static Cursor getIds(SQLiteDatabase db) {
         return db.query(
-                "message", new String[]{"rowid"},
+                "message_content", new String[]{"id"},
                 null, null,
                 null, null, "time");
     }
@@ -247,9 +422,25 @@ public class FtsDbHelper extends SQLiteOpenHelper {
         return context.getDatabasePath(DATABASE_NAME).length();
     }
 
+    static long getSaved(SQLiteDatabase db) {
+        // Text which would have been stored uncompressed in the FTS table
+        try (Cursor cursor = db.query(
+                "SELECT SUM(size) - SUM(length(text)) - SUM(length(attachment)) FROM message_content", null)) {
+            if (cursor != null && cursor.moveToNext())
+                return cursor.getLong(0);
+        }
+        return 0;
+    }
+
+    static boolean canTrigram(String query) {
+        // Trigrams require at least three characters
+        return (query != null && query.trim().length() >= 3);
+    }
+
     static void optimize(SQLiteDatabase db) {
         Log.i("FTS optimize");
         db.execSQL("INSERT INTO message (message) VALUES ('optimize')");
+        db.execSQL("INSERT INTO message_trigram (message_trigram) VALUES ('optimize')");
     }
 
     static void delete(Context context) {
@@ -221,6 +221,10 @@ public class Helper {
     private static final ExecutorService executor = getBackgroundExecutor(1, "helper");
 
     static ExecutorService getBackgroundExecutor(int threads, final String name) {
+        return getBackgroundExecutor(threads, threads == 1, name);
+    }
+
+    static ExecutorService getBackgroundExecutor(int threads, boolean priority, final String name) {
         ThreadFactory factory = new ThreadFactory() {
             private final AtomicInteger threadId = new AtomicInteger();
 
@@ -240,7 +244,7 @@ public class Helper {
                     60L, TimeUnit.SECONDS,
                     new SynchronousQueue<Runnable>(),
                     factory);
-        else if (threads == 1)
+        else if (priority)
             return new ThreadPoolExecutorEx(
                     name,
                     threads, threads,
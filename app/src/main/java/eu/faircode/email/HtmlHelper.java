@@ -105,8 +105,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.ParsePosition;
@@ -133,6 +136,7 @@ public class HtmlHelper {
     static final float FONT_LARGE = 1.25f;
 
     static final int MAX_FULL_TEXT_SIZE = 1024 * 1024; // characters
+    static final int TEXT_VERSION = 1; // Increase when the text extraction changes
     static final int MAX_SHARE_TEXT_SIZE = 50 * 1024; // characters
     static final int MAX_TRANSLATABLE_TEXT_SIZE = 50 * 1024; // characters
 
@@ -2427,6 +2431,49 @@ public class HtmlHelper {
         }
     }
 
+    static String getFullText(Context context, long id) throws IOException {
+        // Use the plain text extracted before, unless the message file changed since
+        File file = EntityMessage.getFile(context, id);
+        if (!file.exists())
+            return null;
+
+        File tfile = EntityMessage.getTextFile(context, id);
+        if (tfile.exists() && tfile.lastModified() >= file.lastModified())
+            return Helper.readText(tfile);
+
+        String text = getFullText(file);
+        writeFullText(context, id, text);
+        return text;
+    }
+
+    static void writeFullText(Context context, long id, String text) {
+        if (text == null)
+            return;
+
+        File tfile = EntityMessage.getTextFile(context, id);
+        File tmp = new File(tfile.getParentFile(), tfile.getName() + ".tmp");
+        try {
+            Helper.writeText(tmp, text);
+            if (!tmp.renameTo(tfile))
+                Log.w("Error renaming " + tmp);
+        } catch (IOException ex) {
+            Log.w(ex);
+            tmp.delete();
+        }
+    }
+
+    static String getFullText(File file, int max) throws IOException {
+        // Parse the start of a large file only
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            int len;
+            int length = 0;
+            char[] buffer = new char[max];
+            while (length < max && (len = reader.read(buffer, length, max - length)) > 0)
+                length += len;
+            return getFullText(new String(buffer, 0, length));
+        }
+    }
+
     private static String _getText(Document d) {
         truncate(d, MAX_FULL_TEXT_SIZE);
 
@@ -2906,12 +2906,27 @@ public class Log {
         attachment.progress = 0;
         attachment.id = db.attachment().insertAttachment(attachment);
 
-        MessageClassifier.save(context);
-        File source = MessageClassifier.getFile(context, false);
         File target = attachment.getFile(context);
-        Helper.copy(source, target);
+        MessageClassifier.export(context, target);
 
         db.attachment().setDownloaded(attachment.id, target.length());
+
+        EntityAttachment stats = new EntityAttachment();
+        stats.message = id;
+        stats.sequence = sequence + 1;
+        stats.name = "classifier.txt";
+        stats.type = "text/plain";
+        stats.disposition = Part.ATTACHMENT;
+        stats.size = null;
+        stats.progress = 0;
+        stats.id = db.attachment().insertAttachment(stats);
+
+        long size;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(stats.getFile(context)))) {
+            size = write(os, MessageClassifier.getStats(context));
+        }
+
+        db.attachment().setDownloaded(stats.id, size);
     }
 
     static SpannableStringBuilder getCiphers() {
@@ -37,26 +37,40 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
 
 public class MessageClassifier {
-    private static boolean loaded = false;
-    private static boolean dirty = false;
-    private static final Map<Long, List<String>> accountMsgIds = new HashMap<>();
-    private static final Map<Long, Map<String, Integer>> classMessages = new HashMap<>();
-    private static final Map<Long, Map<String, Map<String, Frequency>>> wordClassFrequency = new HashMap<>();
+    private static volatile boolean loaded = false;
+    private static volatile boolean dirty = false;
+    private static volatile boolean compact = false;
+    private static volatile ClassifierSnapshot snapshot = null;
+    private static final ConcurrentHashMap<Long, Partition> partitions = new ConcurrentHashMap<>();
+
+    // Lock order: snapshot lock, journal lock, partition lock
+    // Scoring takes the read lock of the partition of the account only
+    private static final Object snapshotLock = new Object();
+    private static final Object journalLock = new Object();
+    private static ClassifierJournal journal = null;
+    private static long generation = 0;
 
     private static final int MAX_WORDS = 1000;
+    private static final long MAX_JOURNAL_SIZE = 4 * 1024 * 1024L; // bytes
 
-    static synchronized void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
+    static void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
         try {
             if (!isEnabled(context))
                 return;
@@ -75,15 +89,10 @@ public class MessageClassifier {
             load(context);
 
             // Initialize account if needed
-            if (!accountMsgIds.containsKey(folder.account))
-                accountMsgIds.put(folder.account, new ArrayList<>());
-            if (!classMessages.containsKey(folder.account))
-                classMessages.put(folder.account, new HashMap<>());
-            if (!wordClassFrequency.containsKey(folder.account))
-                wordClassFrequency.put(folder.account, new HashMap<>());
+            Partition partition = getPartition(folder.account);
 
             // Classify texts
-            String classified = classify(message, folder.name, texts, added, context);
+            String classified = classify(partition, message, folder.name, texts, added, context);
 
             long elapsed = new Date().getTime() - start;
             EntityLog.log(context, EntityLog.Type.Classification, message,
@@ -105,7 +114,7 @@ public class MessageClassifier {
                     !TextUtils.isEmpty(message.msgid) &&
                     !message.hasKeyword(MessageHelper.FLAG_CLASSIFIED) &&
                     (!message.hasKeyword(MessageHelper.FLAG_FILTERED) || BuildConfig.DEBUG) &&
-                    !accountMsgIds.get(folder.account).contains(message.msgid) &&
+                    !partition.hasMsgId(message.msgid) &&
                     !EntityFolder.JUNK.equals(folder.type)) {
                 boolean pro = ActivityBilling.isPro(context);
 
@@ -127,7 +136,7 @@ public class MessageClassifier {
                 }
 
                 //if (message.ui_hide)
-                //    accountMsgIds.get(folder.account).add(message.msgid);
+                //    partition.msgIds.add(message.msgid);
             }
 
             dirty = true;
@@ -170,74 +179,79 @@ public class MessageClassifier {
         if (message.subject != null)
             texts.add(message.subject);
 
-        String text = HtmlHelper.getFullText(file);
+        String text = HtmlHelper.getFullText(context, message.id);
         texts.add(text);
 
         return texts;
     }
 
-    private static String classify(EntityMessage message, @NonNull String currentClass, @NonNull List<String> texts, boolean added, @NonNull Context context) {
+    private static String classify(Partition partition, EntityMessage message, @NonNull String currentClass, @NonNull List<String> texts, boolean added, @NonNull Context context) {
         State state = new State();
 
         // Check classes
+        List<String> classes;
+        partition.lock.readLock().lock();
+        try {
+            classes = new ArrayList<>(partition.classMessages.keySet());
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+
         DB db = DB.getInstance(context);
-        for (String clazz : new ArrayList<>(classMessages.get(message.account).keySet())) {
+        for (String clazz : classes) {
             EntityFolder folder = db.folder().getFolderByName(message.account, clazz);
             if (folder == null || !folder.auto_classify_source) {
                 EntityLog.log(context, EntityLog.Type.Classification, message,
                         "Classifier deleting folder" +
                                 " class=" + message.account + ":" + clazz +
                                 " exists=" + (folder != null));
-                classMessages.get(message.account).remove(clazz);
-                for (String word : wordClassFrequency.get(message.account).keySet())
-                    wordClassFrequency.get(message.account).get(word).remove(clazz);
+                synchronized (journalLock) {
+                    journal(context, new IJournal() {
+                        @Override
+                        public void write(ClassifierJournal journal) throws IOException {
+                            journal.removeClass(message.account, clazz);
+                        }
+                    });
+                    partition.lock.writeLock().lock();
+                    try {
+                        partition.removeClass(clazz);
+                    } finally {
+                        partition.lock.writeLock().unlock();
+                    }
+                }
             }
         }
 
-        Log.i("Classifier texts=" + texts.size());
-        for (String text : texts) {
-            // First word
-            processWord(message.account, added, null, state);
+        int maxMessages = 0;
+        partition.lock.readLock().lock();
+        try {
+            initState(partition, state);
+            score(message.account, added, texts, state);
 
-            // Process words
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
-                java.text.BreakIterator boundary = java.text.BreakIterator.getWordInstance();
-                boundary.setText(text);
-                int start = boundary.first();
-                for (int end = boundary.next(); end != java.text.BreakIterator.DONE; end = boundary.next()) {
-                    String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
-                    if (state.words.size() >= MAX_WORDS)
-                        break;
-                    start = end;
-                }
-            } else {
-                // The ICU break iterator works better for Chinese texts
-                android.icu.text.BreakIterator boundary = android.icu.text.BreakIterator.getWordInstance();
-                boundary.setText(text);
-                int start = boundary.first();
-                for (int end = boundary.next(); end != android.icu.text.BreakIterator.DONE; end = boundary.next()) {
-                    String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
-                    if (state.words.size() >= MAX_WORDS)
-                        break;
-                    start = end;
-                }
+            for (String clazz : partition.classMessages.keySet()) {
+                int count = partition.classMessages.get(clazz);
+                if (count > maxMessages)
+                    maxMessages = count;
             }
+        } finally {
+            partition.lock.readLock().unlock();
         }
 
-        // final word
-        processWord(message.account, added, null, state);
-
-        int maxMessages = 0;
-        for (String clazz : classMessages.get(message.account).keySet()) {
-            int count = classMessages.get(message.account).get(clazz);
-            if (count > maxMessages)
-                maxMessages = count;
+        synchronized (journalLock) {
+            journal(context, new IJournal() {
+                @Override
+                public void write(ClassifierJournal journal) throws IOException {
+                    journal.update(message.account, currentClass, added, state.words);
+                }
+            });
+            partition.lock.writeLock().lock();
+            try {
+                updateFrequencies(partition, currentClass, added, state.words);
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
         }
 
-        updateFrequencies(message.account, currentClass, added, state);
-
         if (maxMessages == 0) {
             Log.i("Classifier no messages account=" + message.account);
             return null;
@@ -310,6 +324,43 @@ public class MessageClassifier {
         return classification;
     }
 
+    private static void score(long account, boolean added, @NonNull List<String> texts, @NonNull State state) {
+        Log.i("Classifier texts=" + texts.size());
+        for (String text : texts) {
+            // First word
+            processWord(account, added, null, state);
+
+            // Process words
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                java.text.BreakIterator boundary = java.text.BreakIterator.getWordInstance();
+                boundary.setText(text);
+                int start = boundary.first();
+                for (int end = boundary.next(); end != java.text.BreakIterator.DONE; end = boundary.next()) {
+                    String word = text.substring(start, end);
+                    processWord(account, added, word, state);
+                    if (state.words.size() >= MAX_WORDS)
+                        break;
+                    start = end;
+                }
+            } else {
+                // The ICU break iterator works better for Chinese texts
+                android.icu.text.BreakIterator boundary = android.icu.text.BreakIterator.getWordInstance();
+                boundary.setText(text);
+                int start = boundary.first();
+                for (int end = boundary.next(); end != android.icu.text.BreakIterator.DONE; end = boundary.next()) {
+                    String word = text.substring(start, end);
+                    processWord(account, added, word, state);
+                    if (state.words.size() >= MAX_WORDS)
+                        break;
+                    start = end;
+                }
+            }
+        }
+
+        // final word
+        processWord(account, added, null, state);
+    }
+
     private static void processWord(long account, boolean added, String word, State state) {
         if (word != null) {
             word = word.trim().toLowerCase();
@@ -335,31 +386,60 @@ public class MessageClassifier {
         if (current == null)
             return;
 
-        Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
-        if (classFrequency == null)
+        // Frequencies are the sum of the snapshot, the changes being saved and the changes
+        ClassifierReader base = state.base;
+        ClassifierModel pending = state.pending;
+        ClassifierModel model = state.model;
+
+        int cb = (base == null ? -1 : base.getId(current));
+        int cp = (pending == null ? -1 : pending.getId(current));
+        int cm = model.getId(current);
+        if (cb < 0 && cp < 0 && cm < 0)
             return;
 
-        for (String clazz : classFrequency.keySet()) {
-            Frequency frequency = classFrequency.get(clazz);
-            if (frequency.count <= 0)
+        int bb = (base == null || before == null ? -1 : base.getId(before));
+        int ab = (base == null || after == null ? -1 : base.getId(after));
+        int bp = (pending == null || before == null ? -1 : pending.getId(before));
+        int ap = (pending == null || after == null ? -1 : pending.getId(after));
+        int bm = (before == null ? -1 : model.getId(before));
+        int am = (after == null ? -1 : model.getId(after));
+
+        for (ClassIds clazz : state.classes) {
+            int rb = (cb < 0 || clazz.base < 0 ? -1 : base.find(cb, clazz.base));
+            int rp = (cp < 0 || clazz.pending < 0 ? -1 : pending.find(cp, clazz.pending));
+            int rm = (cm < 0 || clazz.model < 0 ? -1 : model.find(cm, clazz.model));
+            if (rb < 0 && rp < 0 && rm < 0)
                 continue;
 
-            Stat stat = state.classStats.get(clazz);
+            int count = (rb < 0 ? 0 : base.getCount(rb)) +
+                    (rp < 0 ? 0 : pending.getCount(rp)) +
+                    (rm < 0 ? 0 : model.getCount(rm));
+            if (count <= 0)
+                continue;
+
+            Stat stat = state.classStats.get(clazz.name);
             if (stat == null) {
                 stat = new Stat();
-                state.classStats.put(clazz, stat);
+                state.classStats.put(clazz.name, stat);
             }
 
-            int c = (frequency.count - frequency.duplicates);
-            Integer b = (before == null ? null : frequency.before.get(before));
-            Integer a = (after == null ? null : frequency.after.get(after));
+            int duplicates = (rb < 0 ? 0 : base.getDuplicates(rb)) +
+                    (rp < 0 ? 0 : pending.getDuplicates(rp)) +
+                    (rm < 0 ? 0 : model.getDuplicates(rm));
+            int c = (count - duplicates);
+            int b = sum(sum(rb < 0 ? ClassifierModel.NONE : base.getBefore(rb, bb),
+                            rp < 0 ? ClassifierModel.NONE : pending.getBefore(rp, bp)),
+                    rm < 0 ? ClassifierModel.NONE : model.getBefore(rm, bm));
+            int a = sum(sum(rb < 0 ? ClassifierModel.NONE : base.getAfter(rb, ab),
+                            rp < 0 ? ClassifierModel.NONE : pending.getAfter(rp, ap)),
+                    rm < 0 ? ClassifierModel.NONE : model.getAfter(rm, am));
             double f = (c +
-                    (b == null ? 2 * c : 2.0 * b / frequency.count * c) +
-                    (a == null ? 2 * c : 2.0 * a / frequency.count * c)) / 5.0;
+                    (b == ClassifierModel.NONE ? 2 * c : 2.0 * b / count * c) +
+                    (a == ClassifierModel.NONE ? 2 * c : 2.0 * a / count * c)) / 5.0;
             //Log.i("Classifier " +
-            //        before + "/" + b + "/" + frequency.before.get(before) + " " +
-            //        after + "/" + a + "/" + frequency.after.get(after) + " " +
-            //        current + "/" + c + "=" + frequency.count + "-" + frequency.duplicates +
+            //        before + "/" + b + " " +
+            //        after + "/" + a + " " +
+            //        current + "/" + c + "=" + count + "-" + duplicates +
             //        " f=" + f);
 
             stat.totalFrequency += f;
@@ -370,57 +450,346 @@ public class MessageClassifier {
         }
     }
 
-    private static void updateFrequencies(long account, @NonNull String currentClass, boolean added, @NonNull State state) {
-        Integer m = classMessages.get(account).get(currentClass);
+    // Tokenize without looking up frequencies, for bulk training
+    static List<String> getWords(@NonNull EntityMessage message, @NonNull Context context) throws IOException {
+        List<String> texts = getTexts(message, context);
+        if (texts.size() == 0)
+            return null;
+
+        State state = new State();
+        score(message.account, false, texts, state);
+        return state.words;
+    }
+
+    // Replaces the snapshot and the changes of an account
+    static void retrain(@NonNull Context context, long account, @NonNull Table table) throws IOException {
+        load(context);
+
+        synchronized (snapshotLock) {
+            // Disabled or cleared while training
+            if (!isEnabled(context))
+                return;
+
+            synchronized (journalLock) {
+                Partition partition = getPartition(account);
+                partition.lock.writeLock().lock();
+                try {
+                    partition.classMessages.clear();
+                    partition.classMessages.putAll(table.partition.classMessages);
+                    partition.base = null;
+                    partition.pending = null;
+                    partition.model = table.partition.model;
+                    partition.removed.clear();
+                    partition.pendingRemoved.clear();
+                } finally {
+                    partition.lock.writeLock().unlock();
+                }
+
+                // Persisted by the snapshot only, a crash before it is written restores the previous model
+                compact = true;
+                dirty = true;
+            }
+
+            save(context);
+        }
+    }
+
+    private static void updateFrequencies(@NonNull Partition partition, @NonNull String currentClass, boolean added, @NonNull List<String> words) {
+        Integer m = partition.classMessages.get(currentClass);
         m = (m == null ? 0 : m) + (added ? 1 : -1);
         if (m <= 0)
-            classMessages.get(account).remove(currentClass);
+            partition.classMessages.remove(currentClass);
         else
-            classMessages.get(account).put(currentClass, m);
+            partition.classMessages.put(currentClass, m);
         Log.i("Classifier " + currentClass + "=" + m + " msgs");
 
-        for (int i = 1; i < state.words.size() - 1; i++) {
-            String before = state.words.get(i - 1);
-            String current = state.words.get(i);
-            String after = state.words.get(i + 1);
+        ClassifierReader base = partition.base;
+        ClassifierModel pending = partition.pending;
+        ClassifierModel model = partition.model;
+        int clazz = model.intern(currentClass);
+        int cb = (base == null || partition.isRemoved(currentClass, true)
+                ? -1 : base.getId(currentClass));
+        int cp = (pending == null || partition.isRemoved(currentClass, false)
+                ? -1 : pending.getId(currentClass));
+        for (int i = 1; i < words.size() - 1; i++) {
+            String before = words.get(i - 1);
+            String current = words.get(i);
+            String after = words.get(i + 1);
 
             if (current == null)
                 continue;
 
-            Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
-            if (added) {
-                if (classFrequency == null) {
-                    classFrequency = new HashMap<>();
-                    wordClassFrequency.get(account).put(current, classFrequency);
-                }
-                Frequency c = classFrequency.get(currentClass);
-                if (c == null) {
-                    c = new Frequency();
-                    classFrequency.put(currentClass, c);
-                }
-                c.add(before, after, 1, state.words.indexOf(current) < i);
-            } else {
-                Frequency c = (classFrequency == null ? null : classFrequency.get(currentClass));
-                if (c != null)
-                    c.add(before, after, -1, state.words.indexOf(current) < i);
+            int wb = (cb < 0 ? -1 : base.getId(current));
+            int rb = (wb < 0 ? -1 : base.find(wb, cb));
+            int wp = (cp < 0 ? -1 : pending.getId(current));
+            int rp = (wp < 0 ? -1 : pending.find(wp, cp));
+
+            int record;
+            if (added || rb >= 0 || rp >= 0)
+                record = model.create(model.intern(current), clazz);
+            else {
+                int word = model.getId(current);
+                record = (word < 0 ? -1 : model.find(word, clazz));
             }
+
+            if (record >= 0)
+                model.add(record,
+                        before == null ? -1 : model.intern(before),
+                        after == null ? -1 : model.intern(after),
+                        added ? 1 : -1,
+                        words.indexOf(current) < i,
+                        (rb < 0 ? 0 : base.getCount(rb)) + (rp < 0 ? 0 : pending.getCount(rp)));
+        }
+    }
+
+    private static Partition getPartition(long account) {
+        Partition partition = partitions.get(account);
+        if (partition == null) {
+            partition = new Partition();
+            Partition existing = partitions.putIfAbsent(account, partition);
+            if (existing != null)
+                partition = existing;
+        }
+        return partition;
+    }
+
+    private static void initState(Partition partition, State state) {
+        state.base = partition.base;
+        state.pending = partition.pending;
+        state.model = partition.model;
+        state.partition = partition;
+        state.classes = getClasses(state);
+    }
+
+    private static void journal(Context context, IJournal entry) {
+        // Called with the journal lock held
+        try {
+            if (journal == null)
+                journal = new ClassifierJournal(getJournalFile(context, generation));
+            if (!journal.isOpen())
+                journal.open(generation);
+            entry.write(journal);
+        } catch (Throwable ex) {
+            Log.e(ex);
+            // Persist the changes with the next snapshot
+            compact = true;
         }
     }
 
-    static synchronized void save(@NonNull Context context) throws IOException {
-        if (!dirty)
+    private interface IJournal {
+        void write(ClassifierJournal journal) throws IOException;
+    }
+
+    private static List<ClassIds> getClasses(State state) {
+        // name: snapshot id, pending id, model id
+        Map<String, int[]> ids = new LinkedHashMap<>();
+        if (state.base != null)
+            for (int id : state.base.getClasses()) {
+                String name = state.base.getString(id);
+                if (!state.partition.isRemoved(name, true))
+                    getIds(ids, name)[0] = id;
+            }
+        if (state.pending != null)
+            for (int id : state.pending.getClasses()) {
+                String name = state.pending.getString(id);
+                if (!state.partition.isRemoved(name, false))
+                    getIds(ids, name)[1] = id;
+            }
+        for (int id : state.model.getClasses())
+            getIds(ids, state.model.getString(id))[2] = id;
+
+        List<ClassIds> result = new ArrayList<>();
+        for (String name : ids.keySet()) {
+            int[] id = ids.get(name);
+            result.add(new ClassIds(name, id[0], id[1], id[2]));
+        }
+        return result;
+    }
+
+    private static int[] getIds(Map<String, int[]> ids, String name) {
+        int[] id = ids.get(name);
+        if (id == null) {
+            id = new int[]{-1, -1, -1};
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    private static ClassifierModel merge(
+            ClassifierReader base, Set<String> removed, ClassifierModel changes,
+            Collection<String> classes, Collection<String> msgIds) {
+        ClassifierModel merged = new ClassifierModel();
+        if (base instanceof ClassifierSnapshot.Section)
+            merged.addAll((ClassifierSnapshot.Section) base, removed);
+        else if (base instanceof ClassifierModel)
+            merged.addAll((ClassifierModel) base, removed);
+        if (changes != null)
+            merged.addAll(changes, null);
+
+        // Strings referenced by the snapshot
+        for (String clazz : classes)
+            merged.intern(clazz);
+        for (String msgid : msgIds)
+            merged.intern(msgid);
+
+        return merged;
+    }
+
+    private static int sum(int base, int model) {
+        if (base == ClassifierModel.NONE)
+            return model;
+        if (model == ClassifierModel.NONE)
+            return base;
+        return base + model;
+    }
+
+    static void save(@NonNull Context context) throws IOException {
+        if (!dirty && !compact)
             return;
 
-        long start = new Date().getTime();
+        dirty = false;
 
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
-        backup.delete();
-        if (file.exists())
-            file.renameTo(backup);
+        synchronized (journalLock) {
+            if (journal != null && journal.isOpen()) {
+                journal.sync();
+                if (journal.size() > MAX_JOURNAL_SIZE)
+                    compact = true;
+            }
+        }
+
+        if (compact)
+            compact(context);
+    }
+
+    private static void compact(@NonNull Context context) throws IOException {
+        synchronized (snapshotLock) {
+            long start = new Date().getTime();
+
+            long gen;
+            Map<Long, ClassifierReader> bases = new HashMap<>();
+            Map<Long, ClassifierModel> pendings = new HashMap<>();
+            Map<Long, Set<String>> removed = new HashMap<>();
+            Map<Long, Map<String, Integer>> classMessages = new HashMap<>();
+            Map<Long, List<String>> accountMsgIds = new HashMap<>();
+
+            // Cut the journal, updates wait briefly, scoring continues
+            synchronized (journalLock) {
+                if (!compact)
+                    return;
+
+                gen = generation + 1;
+                for (Long account : partitions.keySet()) {
+                    Partition partition = partitions.get(account);
+
+                    // Set the changes aside, new changes go into an empty model
+                    partition.lock.writeLock().lock();
+                    try {
+                        partition.pending = partition.model;
+                        partition.model = new ClassifierModel();
+                        partition.pendingRemoved.addAll(partition.removed);
+                        partition.removed.clear();
+
+                        bases.put(account, partition.base);
+                        pendings.put(account, partition.pending);
+                        removed.put(account, new HashSet<>(partition.pendingRemoved));
+                        classMessages.put(account, new HashMap<>(partition.classMessages));
+                        accountMsgIds.put(account, new ArrayList<>(partition.msgIds));
+                    } finally {
+                        partition.lock.writeLock().unlock();
+                    }
+                }
+
+                // Changes from now on are relative to the new snapshot
+                if (journal != null)
+                    journal.close();
+                generation = gen;
+                journal = new ClassifierJournal(getJournalFile(context, generation));
+                journal.open(generation);
+
+                compact = false;
+            }
+
+            // The snapshot and the changes set aside do not change anymore
+            Map<Long, ClassifierModel> models = new HashMap<>();
+            for (Long account : pendings.keySet()) {
+                ClassifierModel merged = merge(bases.get(account), removed.get(account), pendings.get(account),
+                        classMessages.get(account).keySet(), accountMsgIds.get(account));
+
+                Partition partition = partitions.get(account);
+                if (partition != null) {
+                    partition.lock.writeLock().lock();
+                    try {
+                        if (partition.pending == pendings.get(account)) {
+                            partition.base = merged;
+                            partition.pending = null;
+                            partition.pendingRemoved.clear();
+                        }
+                    } finally {
+                        partition.lock.writeLock().unlock();
+                    }
+                }
+
+                models.put(account, merged);
+            }
+
+            try {
+                File file = getFile(context, false);
+                File tmp = getFile(context, true);
+                Log.i("Classifier save " + file + " generation=" + gen);
+                ClassifierSnapshot.write(tmp, gen, models.keySet(), classMessages, models, accountMsgIds);
+                if (!tmp.renameTo(file))
+                    throw new IOException("Could not rename " + tmp + " to " + file);
+
+                ClassifierSnapshot s = ClassifierSnapshot.open(file);
+                for (Long account : models.keySet()) {
+                    Partition partition = partitions.get(account);
+                    if (partition == null)
+                        continue;
+                    partition.lock.writeLock().lock();
+                    try {
+                        if (partition.base == models.get(account))
+                            partition.base = s.getSection(account);
+                    } finally {
+                        partition.lock.writeLock().unlock();
+                    }
+                }
+                snapshot = s;
+            } catch (IOException ex) {
+                // The journals of both generations will be replayed
+                compact = true;
+                throw ex;
+            }
+
+            // Compacted into the snapshot
+            deleteJournals(context, gen);
+            getJsonFile(context, false).delete();
+            getJsonFile(context, true).delete();
+
+            long elapsed = new Date().getTime() - start;
+            Log.i("Classifier data saved elapsed=" + elapsed);
+        }
+    }
 
-        Log.i("Classifier save " + file);
+    static void export(@NonNull Context context, @NonNull File file) throws IOException {
+        load(context);
+
+        Log.i("Classifier export " + file);
         try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(file)))) {
+            Map<Long, ClassifierModel> models = new HashMap<>();
+            Map<Long, Map<String, Integer>> classMessages = new HashMap<>();
+            Map<Long, List<String>> accountMsgIds = new HashMap<>();
+            for (Long account : partitions.keySet()) {
+                Partition partition = partitions.get(account);
+                partition.lock.readLock().lock();
+                try {
+                    models.put(account, partition.merge());
+                    classMessages.put(account, new HashMap<>(partition.classMessages));
+                    accountMsgIds.put(account, new ArrayList<>(partition.msgIds));
+                } finally {
+                    partition.lock.readLock().unlock();
+                }
+            }
+
             writer.beginObject();
 
             writer.name("version").value(2);
@@ -439,34 +808,26 @@ public class MessageClassifier {
 
             writer.name("words");
             writer.beginArray();
-            for (Long account : wordClassFrequency.keySet())
-                for (String word : wordClassFrequency.get(account).keySet()) {
-                    Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                    for (String clazz : classFrequency.keySet()) {
-                        Frequency f = classFrequency.get(clazz);
-                        writer.beginObject();
-
-                        writer.name("account").value(account);
-                        writer.name("word").value(word);
-                        writer.name("class").value(clazz);
-                        writer.name("count").value(f.count);
-                        writer.name("dup").value(f.duplicates);
-
-                        writer.name("before");
-                        writer.beginObject();
-                        for (String key : f.before.keySet())
-                            writer.name(key).value(f.before.get(key));
-                        writer.endObject();
-
-                        writer.name("after");
-                        writer.beginObject();
-                        for (String key : f.after.keySet())
-                            writer.name(key).value(f.after.get(key));
-                        writer.endObject();
-
-                        writer.endObject();
-                    }
+            for (Long account : models.keySet()) {
+                ClassifierModel model = models.get(account);
+                for (int record = 0; record < model.size(); record++) {
+                    writer.beginObject();
+
+                    writer.name("account").value(account);
+                    writer.name("word").value(model.getString(model.getWord(record)));
+                    writer.name("class").value(model.getString(model.getClass(record)));
+                    writer.name("count").value(model.getCount(record));
+                    writer.name("dup").value(model.getDuplicates(record));
+
+                    writer.name("before");
+                    writeCounts(writer, model, model.getBefore(record));
+
+                    writer.name("after");
+                    writeCounts(writer, model, model.getAfter(record));
+
+                    writer.endObject();
                 }
+            }
             writer.endArray();
 
             writer.name("classified");
@@ -485,34 +846,121 @@ public class MessageClassifier {
 
             writer.endObject();
         }
+    }
+
+    private static void writeCounts(JsonWriter writer, ClassifierModel model, ClassifierModel.Counts counts) throws IOException {
+        writer.beginObject();
+        if (counts != null)
+            for (long slot : counts.getSlots())
+                if (slot != 0)
+                    writer.name(model.getString(ClassifierModel.Counts.getKey(slot)))
+                            .value(ClassifierModel.Counts.getValue(slot));
+        writer.endObject();
+    }
 
-        backup.delete();
+    private static void load(@NonNull Context context) {
+        if (loaded)
+            return;
+
+        synchronized (snapshotLock) {
+            synchronized (journalLock) {
+                if (loaded)
+                    return;
 
+                reset();
+                File file = getFile(context, false);
+                File json = getJsonFile(context, true);
+                if (!json.exists())
+                    json = getJsonFile(context, false);
+                try {
+                    if (file.exists() || !json.exists()) {
+                        _open(file);
+                        _replay(context);
+                    } else {
+                        _import(json);
+                        // Convert to snapshot
+                        compact = true;
+                        dirty = true;
+                    }
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                    file.delete();
+                    json.delete();
+                    clear(context);
+                }
+            }
+        }
+    }
+
+    private static void _open(File file) throws IOException {
+        Log.i("Classifier open " + file);
+        long start = new Date().getTime();
+        if (file.exists()) {
+            snapshot = ClassifierSnapshot.open(file);
+            generation = snapshot.getGeneration();
+            for (long account : snapshot.getAccounts()) {
+                ClassifierSnapshot.Section section = snapshot.getSection(account);
+                Partition partition = getPartition(account);
+                partition.classMessages.putAll(section.getMessages());
+                partition.msgIds.addAll(section.getMsgIds());
+                partition.base = section;
+            }
+        }
+
+        loaded = true;
         dirty = false;
 
         long elapsed = new Date().getTime() - start;
-        Log.i("Classifier data saved elapsed=" + elapsed);
+        Log.i("Classifier data opened elapsed=" + elapsed);
     }
 
-    private static synchronized void load(@NonNull Context context) {
-        if (loaded || dirty)
-            return;
+    private static void _replay(@NonNull Context context) throws IOException {
+        long start = new Date().getTime();
 
-        clear(context);
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
-        if (backup.exists())
-            file = backup;
-        try {
-            _load(file);
-        } catch (Throwable ex) {
-            Log.e(ex);
-            file.delete();
-            clear(context);
+        // A save interrupted after the journal cut-over leaves the journal of the next generation
+        List<Long> generations = new ArrayList<>();
+        for (long gen : getJournals(context))
+            if (gen < generation)
+                getJournalFile(context, gen).delete();
+            else
+                generations.add(gen);
+        Collections.sort(generations);
+
+        int count = 0;
+        for (long gen : generations) {
+            ClassifierJournal j = new ClassifierJournal(getJournalFile(context, gen));
+            count += j.replay(gen, new ClassifierJournal.IReplay() {
+                @Override
+                public void onUpdate(long account, String clazz, boolean added, List<String> words) {
+                    updateFrequencies(getPartition(account), clazz, added, words);
+                }
+
+                @Override
+                public void onRemoveClass(long account, String clazz) {
+                    getPartition(account).removeClass(clazz);
+                }
+
+                @Override
+                public void onRemoveMsgId(long account, String msgid) {
+                    getPartition(account).msgIds.remove(msgid);
+                }
+            });
+            generation = gen;
+        }
+
+        // Changes of more than one generation are compacted on the next save
+        if (generations.size() > 1) {
+            compact = true;
+            dirty = true;
         }
+
+        journal = new ClassifierJournal(getJournalFile(context, generation));
+
+        long elapsed = new Date().getTime() - start;
+        Log.i("Classifier journal replayed=" + count + " generation=" + generation + " elapsed=" + elapsed);
     }
 
-    private static synchronized void _load(File file) throws IOException {
+    private static void _import(File file) throws IOException {
         Log.i("Classifier read " + file);
         long start = new Date().getTime();
         if (file.exists())
@@ -549,9 +997,7 @@ public class MessageClassifier {
                                 if (account == null || clazz == null || count == null)
                                     continue;
 
-                                if (!classMessages.containsKey(account))
-                                    classMessages.put(account, new HashMap<>());
-                                classMessages.get(account).put(clazz, count);
+                                getPartition(account).classMessages.put(clazz, count);
                             }
                             reader.endArray();
                             break;
@@ -562,7 +1008,10 @@ public class MessageClassifier {
                                 Long account = null;
                                 String word = null;
                                 String clazz = null;
-                                Frequency f = new Frequency();
+                                int count = 0;
+                                int dup = 0;
+                                Map<String, Integer> before = new HashMap<>();
+                                Map<String, Integer> after = new HashMap<>();
 
                                 reader.beginObject();
                                 while (reader.hasNext())
@@ -577,21 +1026,21 @@ public class MessageClassifier {
                                             clazz = reader.nextString();
                                             break;
                                         case "count":
-                                            f.count = reader.nextInt();
+                                            count = reader.nextInt();
                                             break;
                                         case "dup":
-                                            f.duplicates = reader.nextInt();
+                                            dup = reader.nextInt();
                                             break;
                                         case "before":
                                             reader.beginObject();
                                             while (reader.hasNext())
-                                                f.before.put(reader.nextName(), reader.nextInt());
+                                                before.put(reader.nextName(), reader.nextInt());
                                             reader.endObject();
                                             break;
                                         case "after":
                                             reader.beginObject();
                                             while (reader.hasNext())
-                                                f.after.put(reader.nextName(), reader.nextInt());
+                                                after.put(reader.nextName(), reader.nextInt());
                                             reader.endObject();
                                             break;
                                     }
@@ -600,16 +1049,13 @@ public class MessageClassifier {
                                 if (account == null || word == null || clazz == null)
                                     continue;
 
-                                if (!wordClassFrequency.containsKey(account))
-                                    wordClassFrequency.put(account, new HashMap<>());
-
-                                Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                                if (classFrequency == null) {
-                                    classFrequency = new HashMap<>();
-                                    wordClassFrequency.get(account).put(word, classFrequency);
-                                }
-
-                                classFrequency.put(clazz, f);
+                                ClassifierModel model = getPartition(account).model;
+                                int record = model.create(model.intern(word), model.intern(clazz));
+                                model.set(record, count, dup);
+                                for (String key : before.keySet())
+                                    model.addBefore(record, model.intern(key), before.get(key));
+                                for (String key : after.keySet())
+                                    model.addAfter(record, model.intern(key), after.get(key));
                             }
                             reader.endArray();
                             break;
@@ -638,7 +1084,7 @@ public class MessageClassifier {
                                 if (account == null)
                                     continue;
 
-                                accountMsgIds.put(account, msgids);
+                                getPartition(account).msgIds.addAll(msgids);
                             }
                             reader.endArray();
                             break;
@@ -653,19 +1099,41 @@ public class MessageClassifier {
         Log.i("Classifier data loaded elapsed=" + elapsed);
     }
 
-    static synchronized void cleanup(@NonNull Context context) {
+    static void cleanup(@NonNull Context context) {
         try {
             load(context);
 
             DB db = DB.getInstance(context);
-            for (Long account : accountMsgIds.keySet()) {
-                List<String> msgids = accountMsgIds.get(account);
+            for (Long account : partitions.keySet()) {
+                Partition partition = partitions.get(account);
+
+                List<String> msgids;
+                partition.lock.readLock().lock();
+                try {
+                    msgids = new ArrayList<>(partition.msgIds);
+                } finally {
+                    partition.lock.readLock().unlock();
+                }
+
                 Log.i("Classifier cleanup account=" + account + " count=" + msgids.size());
-                for (String msgid : new ArrayList<>(msgids)) {
+                for (String msgid : msgids) {
                     List<EntityMessage> messages = db.message().getMessagesByMsgId(account, msgid);
                     if (messages != null && messages.size() == 0) {
                         Log.i("Classifier removing msgid=" + msgid);
-                        msgids.remove(msgid);
+                        synchronized (journalLock) {
+                            journal(context, new IJournal() {
+                                @Override
+                                public void write(ClassifierJournal journal) throws IOException {
+                                    journal.removeMsgId(account, msgid);
+                                }
+                            });
+                            partition.lock.writeLock().lock();
+                            try {
+                                partition.msgIds.remove(msgid);
+                            } finally {
+                                partition.lock.writeLock().unlock();
+                            }
+                        }
                         dirty = true;
                     }
                 }
@@ -678,12 +1146,63 @@ public class MessageClassifier {
         }
     }
 
-    static synchronized void clear(@NonNull Context context) {
-        accountMsgIds.clear();
-        classMessages.clear();
-        wordClassFrequency.clear();
-        dirty = true;
-        Log.i("Classifier data cleared");
+    static void clear(@NonNull Context context) {
+        synchronized (snapshotLock) {
+            synchronized (journalLock) {
+                reset();
+                for (long gen : getJournals(context))
+                    getJournalFile(context, gen).delete();
+                getFile(context, false).delete();
+                loaded = true;
+                dirty = false;
+                Log.i("Classifier data cleared");
+            }
+        }
+    }
+
+    private static void reset() {
+        partitions.clear();
+        snapshot = null;
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        generation = 0;
+        compact = false;
+    }
+
+    static String getStats(@NonNull Context context) {
+        load(context);
+
+        long memory = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Long account : partitions.keySet()) {
+            Partition partition = partitions.get(account);
+            partition.lock.readLock().lock();
+            try {
+                sb.append("Account ").append(account)
+                        .append(" messages=").append(partition.classMessages).append("\r\n");
+                if (partition.base != null)
+                    sb.append("  snapshot ").append(partition.base).append("\r\n");
+                if (partition.pending != null)
+                    sb.append("  saving ").append(partition.pending).append("\r\n");
+                memory += partition.model.getMemoryUsage();
+                sb.append("  changes ").append(partition.model).append("\r\n");
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+
+        ClassifierSnapshot s = snapshot;
+        long journalSize;
+        synchronized (journalLock) {
+            journalSize = (journal == null ? 0 : journal.size());
+        }
+        sb.append("Snapshot ").append(Helper.humanReadableByteCount(s == null ? 0 : s.size()))
+                .append(" generation ").append(generation)
+                .append(" journal ").append(Helper.humanReadableByteCount(journalSize))
+                .append(" memory ").append(Helper.humanReadableByteCount(memory)).append("\r\n");
+        return sb.toString();
     }
 
     static boolean isEnabled(@NonNull Context context) {
@@ -691,40 +1210,128 @@ public class MessageClassifier {
         return prefs.getBoolean("classification", false);
     }
 
-    static File getFile(@NonNull Context context, boolean backup) {
+    static File getFile(@NonNull Context context, boolean tmp) {
         return new File(context.getFilesDir(),
-                backup ? "classifier.backup" : "classifier.json");
+                tmp ? "classifier.tmp" : "classifier.bin");
     }
 
-    private static class State {
-        private final List<String> words = new ArrayList<>();
-        private final Map<String, Stat> classStats = new HashMap<>();
+    private static File getJournalFile(@NonNull Context context, long generation) {
+        return new File(context.getFilesDir(), "classifier." + generation + ".journal");
+    }
+
+    private static List<Long> getJournals(@NonNull Context context) {
+        List<Long> result = new ArrayList<>();
+        File[] files = context.getFilesDir().listFiles();
+        if (files != null)
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("classifier.") && name.endsWith(".journal"))
+                    try {
+                        result.add(Long.parseLong(name.substring(11, name.length() - 8)));
+                    } catch (NumberFormatException ignored) {
+                    }
+            }
+        return result;
     }
 
-    private static class Frequency {
-        private int count = 0;
-        private int duplicates = 0;
-        private Map<String, Integer> before = new HashMap<>();
-        private Map<String, Integer> after = new HashMap<>();
+    private static void deleteJournals(@NonNull Context context, long generation) {
+        for (long gen : getJournals(context))
+            if (gen < generation)
+                getJournalFile(context, gen).delete();
+    }
 
-        private void add(String b, String a, int c, boolean duplicate) {
-            if (count + c < 0)
-                return;
+    private static class Partition {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<String> msgIds = new ArrayList<>();
+        private final Map<String, Integer> classMessages = new HashMap<>();
+        private final Set<String> removed = new HashSet<>(); // removed from the snapshot and the pending changes
+        private final Set<String> pendingRemoved = new HashSet<>(); // removed from the snapshot before the pending changes
+        private ClassifierReader base = null; // snapshot section or merged model being saved
+        private ClassifierModel pending = null; // changes being merged into the snapshot
+        private ClassifierModel model = new ClassifierModel(); // changes since the snapshot
+
+        // Called with the write lock held
+        private void removeClass(String clazz) {
+            classMessages.remove(clazz);
+            int id = model.getId(clazz);
+            if (id >= 0)
+                model.removeClass(id);
+            removed.add(clazz);
+        }
 
-            count += c;
+        // Called with a lock held
+        private boolean isRemoved(String clazz, boolean base) {
+            return (removed.contains(clazz) || (base && pendingRemoved.contains(clazz)));
+        }
 
-            if (duplicate)
-                duplicates += c;
+        // Called with the read lock held
+        private ClassifierModel merge() {
+            Set<String> excluded = new HashSet<>(removed);
+            excluded.addAll(pendingRemoved);
+            ClassifierModel merged = MessageClassifier.merge(base, excluded, null,
+                    classMessages.keySet(), msgIds);
+            if (pending != null)
+                merged.addAll(pending, removed);
+            merged.addAll(model, null);
+            return merged;
+        }
 
-            if (b != null) {
-                Integer x = before.get(b);
-                before.put(b, (x == null ? 0 : x) + c);
+        private boolean hasMsgId(String msgid) {
+            lock.readLock().lock();
+            try {
+                return msgIds.contains(msgid);
+            } finally {
+                lock.readLock().unlock();
             }
+        }
+    }
+
+    // Partial frequency table of a bulk training task
+    static class Table {
+        private final Partition partition = new Partition();
+        private int messages = 0;
+
+        void add(@NonNull String clazz, @NonNull List<String> words) {
+            updateFrequencies(partition, clazz, true, words);
+            messages++;
+        }
 
-            if (a != null) {
-                Integer x = after.get(a);
-                after.put(a, (x == null ? 0 : x) + c);
+        void addAll(@NonNull Table table) {
+            for (String clazz : table.partition.classMessages.keySet()) {
+                Integer m = partition.classMessages.get(clazz);
+                partition.classMessages.put(clazz,
+                        (m == null ? 0 : m) + table.partition.classMessages.get(clazz));
             }
+            partition.model.addAll(table.partition.model, null);
+            messages += table.messages;
+        }
+
+        int getMessages() {
+            return messages;
+        }
+    }
+
+    private static class State {
+        private final List<String> words = new ArrayList<>();
+        private final Map<String, Stat> classStats = new HashMap<>();
+        private Partition partition;
+        private ClassifierReader base;
+        private ClassifierModel pending;
+        private ClassifierModel model;
+        private List<ClassIds> classes;
+    }
+
+    private static class ClassIds {
+        private final String name;
+        private final int base; // snapshot string id
+        private final int pending; // pending string id
+        private final int model; // model string id
+
+        private ClassIds(String name, int base, int pending, int model) {
+            this.name = name;
+            this.base = base;
+            this.pending = pending;
+            this.model = model;
         }
     }
 
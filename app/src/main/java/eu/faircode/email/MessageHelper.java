@@ -67,6 +67,7 @@ import org.simplejavamail.outlookmessageparser.model.OutlookMessage;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -75,8 +76,12 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.IDN;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
@@ -165,6 +170,7 @@ public class MessageHelper {
 
     private static final int MAX_HEADER_LENGTH = 998;
     private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024; // bytes
+    private static final int STREAM_MESSAGE_SIZE = 1024 * 1024; // bytes
     private static final long ATTACHMENT_PROGRESS_UPDATE = 1500L; // milliseconds
     private static final int MAX_META_EXCERPT = 1024; // characters
     private static final int FORMAT_FLOWED_LINE_LENGTH = 72; // characters
@@ -3092,6 +3098,67 @@ public class MessageHelper {
             return getHtml(context, plain_text, null);
         }
 
+        boolean writeHtml(Context context, boolean plain_text, String override, File file) throws MessagingException, IOException {
+            // Decode large HTML parts with a declared character set directly into the file
+            // Plain text needs to be converted and undeclared character sets need to be detected
+            if (override != null || text.size() == 0 || extra.size() > 0)
+                return false;
+
+            PartHolder html = null;
+            Integer plain = isPlainOnly();
+            boolean hasPlain = (plain != null && (plain & 0x80) != 0);
+            if ((plain != null && (plain & 1) != 0) || (plain_text && hasPlain))
+                return false;
+            for (PartHolder h : text)
+                if (h.isHtml())
+                    if (html == null)
+                        html = h;
+                    else
+                        return false;
+            if (html == null)
+                return false;
+
+            int size = html.part.getSize();
+            if (size < STREAM_MESSAGE_SIZE || size > MAX_MESSAGE_SIZE)
+                return false;
+
+            Charset cs;
+            try {
+                String charset = html.contentType.getParameter("charset");
+                if (TextUtils.isEmpty(charset))
+                    return false;
+                cs = Charset.forName(charset);
+            } catch (Throwable ex) {
+                Log.w(ex);
+                return false;
+            }
+            if (StandardCharsets.US_ASCII.equals(cs) ||
+                    StandardCharsets.ISO_8859_1.equals(cs) ||
+                    CHARSET16.contains(cs))
+                return false;
+
+            try (InputStream is = html.part.getInputStream()) {
+                Reader reader = new InputStreamReader(is, cs);
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                    long length = 0;
+                    char[] buffer = new char[Helper.BUFFER_SIZE];
+                    for (int len = reader.read(buffer); len != -1; len = reader.read(buffer)) {
+                        writer.write(buffer, 0, len);
+                        length += len;
+                    }
+                    Log.i("Streamed html size=" + size + " length=" + length + " charset=" + cs);
+                }
+            } catch (IOException | FolderClosedException | MessageRemovedException ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                Log.e(ex);
+                return false;
+            }
+
+            return true;
+        }
+
         String getHtml(Context context, boolean plain_text, String override) throws MessagingException, IOException {
             if (text.size() == 0) {
                 Log.i("No body part");
@@ -0,0 +1,350 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+
+// Times the local search paths on a synthetic mailbox in throwaway databases
+// The mailbox is generated from a fixed seed, so results can be compared across releases
+public class SearchBenchmark {
+    static final int[] SIZES = new int[]{10000, 100000, 1000000};
+
+    private static final String DB_NAME = "benchmark.db";
+    private static final String FTS_NAME = "benchmark_fts.db";
+
+    private static final long SEED = 20220601L;
+    private static final long ID_BASE = 1L << 40;
+    private static final long RECEIVED_BASE = 1640995200000L; // 2022-01-01
+    private static final int VOCABULARY = 50000;
+    private static final int SENDERS = 5000;
+    private static final int DOMAINS = 50;
+    private static final int BATCH = 1000;
+    private static final int REPEAT = 5;
+    private static final int MAX_RESULTS = 1000;
+    private static final int FILTER_BATCH = 250;
+    private static final int RANKED_LIMIT = 100;
+    private static final int PAGE_SIZE = 10;
+    private static final boolean TRIGRAM = true; // the trigram index is always built
+
+    // Vocabulary ranks of the queries, from frequent to rare
+    private static final int[] WORD_RANKS = new int[]{0, 1, 3, 10, 30, 100, 300, 1000, 3000, 10000, 30000};
+    private static final int[] SENDER_RANKS = new int[]{0, 10, 100, 1000};
+
+    private static final String[] SYLLABLES = new String[]{
+            "ba", "de", "fi", "go", "ku", "la", "me", "ni",
+            "po", "ra", "se", "ti", "vo", "wa", "xe", "zu"
+    };
+
+    static String run(Context context, int size) throws IOException {
+        context.deleteDatabase(DB_NAME);
+        context.deleteDatabase(FTS_NAME);
+
+        DB db = DB.getBenchmarkInstance(context, DB_NAME);
+        FtsDbHelper helper = FtsDbHelper.getBenchmarkInstance(context, FTS_NAME);
+        try {
+            SQLiteDatabase sdb = helper.getWritableDatabase();
+
+            long start = System.nanoTime();
+            generate(context, db, sdb, size);
+            long generated = System.nanoTime() - start;
+
+            List<String> queries = new ArrayList<>();
+            for (int rank : WORD_RANKS)
+                queries.add(word(rank));
+            for (int rank : SENDER_RANKS)
+                queries.add(word(VOCABULARY + 2 * rank + 1));
+
+            BoundaryCallbackMessages.SearchCriteria device = new BoundaryCallbackMessages.SearchCriteria();
+            BoundaryCallbackMessages.SearchCriteria fts = new BoundaryCallbackMessages.SearchCriteria();
+            fts.fts = true;
+            BoundaryCallbackMessages boundaryDevice = new BoundaryCallbackMessages(context,
+                    AdapterMessage.ViewType.SEARCH, -1, -1, false, device, PAGE_SIZE);
+            BoundaryCallbackMessages boundaryFts = new BoundaryCallbackMessages(context,
+                    AdapterMessage.ViewType.SEARCH, -1, -1, false, fts, PAGE_SIZE);
+
+            Map<String, List<Long>> timings = new LinkedHashMap<>();
+            for (int r = 0; r < REPEAT; r++)
+                for (String query : queries) {
+                    String prefix = query.substring(0, 3);
+
+                    start = System.nanoTime();
+                    db.message().matchMessages(
+                            null, null, new long[0], "%" + query + "%",
+                            true, true, true, true, true, true, false,
+                            false, false, false, false, false, false,
+                            0, new String[0],
+                            null,
+                            null, null,
+                            MAX_RESULTS, 0);
+                    add(timings, "LIKE", start);
+
+                    BoundaryCallbackMessages.SearchCriteria criteria = new BoundaryCallbackMessages.SearchCriteria();
+                    criteria.query = query;
+                    criteria.fts = true;
+
+                    start = System.nanoTime();
+                    List<Long> ids = FtsDbHelper.match(sdb, null, null, new long[0], criteria, 0, 0);
+                    add(timings, "FTS", start);
+
+                    // As the search on the device does
+                    db.message().getMessagesForSearch(
+                            ids.subList(0, Math.min(ids.size(), FILTER_BATCH)),
+                            false, false, false, false, false,
+                            new long[0]);
+                    add(timings, "FTS+filter", start);
+
+                    criteria.fts_ranked = true;
+                    start = System.nanoTime();
+                    FtsDbHelper.match(sdb, null, null, new long[0], criteria, 0, RANKED_LIMIT);
+                    add(timings, "FTS ranked", start);
+
+                    criteria.fts = false;
+                    criteria.fts_ranked = false;
+                    start = System.nanoTime();
+                    FtsDbHelper.match(sdb, null, null, new long[0], criteria, 0, 0);
+                    add(timings, "trigram", start);
+
+                    start = System.nanoTime();
+                    try (Cursor cursor = db.message().getSuggestions(null, null, "%" + prefix + "%", 3)) {
+                        while (cursor.moveToNext())
+                            cursor.getString(1);
+                    }
+                    add(timings, "suggest", start);
+
+                    start = System.nanoTime();
+                    FtsDbHelper.getTerms(sdb, prefix, 3);
+                    add(timings, "suggest FTS", start);
+
+                    device.query = query;
+                    db.message().resetSearch();
+                    start = System.nanoTime();
+                    boundaryDevice.load_device(new BoundaryCallbackMessages.State(), db, sdb);
+                    add(timings, "load LIKE", start);
+
+                    fts.query = query;
+                    db.message().resetSearch();
+                    start = System.nanoTime();
+                    boundaryFts.load_device(new BoundaryCallbackMessages.State(), db, sdb);
+                    add(timings, "load FTS", start);
+                }
+
+            for (int r = 0; r < REPEAT; r++) {
+                start = System.nanoTime();
+                FtsDbHelper.getTerms(sdb, SearchSuggestions.MAX_TERMS);
+                add(timings, "vocabulary", start);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("messages=").append(size)
+                    .append(" generated=").append(generated / 1000000L).append(" ms")
+                    .append(" db=").append(Helper.humanReadableByteCount(context.getDatabasePath(DB_NAME).length()))
+                    .append(" fts=").append(Helper.humanReadableByteCount(context.getDatabasePath(FTS_NAME).length()))
+                    .append(" trigram=").append(TRIGRAM)
+                    .append(" queries=").append(queries.size())
+                    .append(" repeat=").append(REPEAT)
+                    .append("\r\n");
+            for (String name : timings.keySet()) {
+                List<Long> values = timings.get(name);
+                Collections.sort(values);
+                sb.append(name)
+                        .append(" p50=").append(format(percentile(values, 50)))
+                        .append(" p90=").append(format(percentile(values, 90)))
+                        .append(" p99=").append(format(percentile(values, 99)))
+                        .append(" max=").append(format(values.get(values.size() - 1)))
+                        .append(" ms\r\n");
+            }
+
+            String result = sb.toString();
+            EntityLog.log(context, EntityLog.Type.Statistics, "Search benchmark " + result);
+            return result;
+        } finally {
+            helper.close();
+            db.close();
+            context.deleteDatabase(DB_NAME);
+            context.deleteDatabase(FTS_NAME);
+            for (int n = 0; n < size; n++) {
+                EntityMessage.getFile(context, ID_BASE + n).delete();
+                EntityMessage.getTextFile(context, ID_BASE + n).delete();
+            }
+        }
+    }
+
+    private static void generate(Context context, DB db, SQLiteDatabase sdb, int size) throws IOException {
+        Random random = new Random(SEED);
+        Zipf words = new Zipf(VOCABULARY);
+        Zipf senders = new Zipf(SENDERS);
+
+        EntityAccount account = new EntityAccount();
+        account.host = "imap.example.com";
+        account.port = 993;
+        account.auth_type = ServiceAuthenticator.AUTH_TYPE_PASSWORD;
+        account.user = "me@example.com";
+        account.password = "";
+        account.name = "Benchmark";
+        account.synchronize = false;
+        account.primary = false;
+        account.id = db.account().insertAccount(account);
+
+        EntityFolder folder = new EntityFolder();
+        folder.account = account.id;
+        folder.name = EntityFolder.INBOX;
+        folder.type = EntityFolder.INBOX;
+        folder.synchronize = false;
+        folder.sync_days = EntityFolder.DEFAULT_SYNC;
+        folder.keep_days = EntityFolder.DEFAULT_KEEP;
+        folder.id = db.folder().insertFolder(folder);
+
+        Address[] to = new Address[]{address("me@example.com", "Me")};
+
+        for (int i = 0; i < size; i += BATCH)
+            try {
+                db.beginTransaction();
+                sdb.beginTransaction();
+
+                for (int n = i; n < Math.min(size, i + BATCH); n++) {
+                    int s = senders.next(random);
+                    String first = capitalize(word(VOCABULARY + 2 * s));
+                    String last = capitalize(word(VOCABULARY + 2 * s + 1));
+                    String email = first.toLowerCase(Locale.ROOT) + "." + last.toLowerCase(Locale.ROOT) +
+                            "@" + word(VOCABULARY + 2 * SENDERS + s % DOMAINS) + ".example.com";
+
+                    String subject = (random.nextInt(10) < 3 ? "Re: " : "") +
+                            capitalize(text(random, words, 3 + random.nextInt(6)));
+                    String body = text(random, words, 30 + random.nextInt(271));
+
+                    EntityMessage message = new EntityMessage();
+                    message.id = ID_BASE + n;
+                    message.account = account.id;
+                    message.folder = folder.id;
+                    message.uid = (long) n + 1;
+                    message.msgid = "<" + n + "@benchmark.example.com>";
+                    message.thread = message.msgid;
+                    message.received = RECEIVED_BASE + n * 60000L;
+                    message.from = new Address[]{address(email, first + " " + last)};
+                    message.to = to;
+                    message.subject = subject;
+                    message.preview = body.substring(0, Math.min(body.length(), HtmlHelper.PREVIEW_SIZE));
+                    message.keywords = new String[0];
+                    message.content = true;
+                    message.fts = true;
+                    message.size = (long) body.length();
+                    message.total = message.size;
+                    db.message().insertMessage(message);
+
+                    // The search on the device reads the message bodies
+                    Helper.writeText(message.getFile(context), "<p>" + body + "</p>");
+                    HtmlHelper.writeFullText(context, message.id, body);
+
+                    FtsDbHelper.insert(sdb, message, body, "", TRIGRAM);
+                }
+
+                sdb.setTransactionSuccessful();
+                db.setTransactionSuccessful();
+            } finally {
+                sdb.endTransaction();
+                db.endTransaction();
+            }
+    }
+
+    static String text(Random random, Zipf words, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (sb.length() > 0)
+                sb.append(i % 12 == 0 ? ". " : " ");
+            sb.append(word(words.next(random)));
+        }
+        return sb.toString();
+    }
+
+    static String word(int rank) {
+        // Distinct pronounceable words of at least two syllables
+        StringBuilder sb = new StringBuilder();
+        for (int n = rank + SYLLABLES.length; n > 0; n /= SYLLABLES.length)
+            sb.append(SYLLABLES[n % SYLLABLES.length]);
+        return sb.toString();
+    }
+
+    static String capitalize(String word) {
+        return word.substring(0, 1).toUpperCase(Locale.ROOT) + word.substring(1);
+    }
+
+    private static Address address(String email, String name) {
+        try {
+            return new InternetAddress(email, name);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    static class Zipf {
+        private final double[] cdf;
+
+        Zipf(int n) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / (i + 1);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++)
+                cdf[i] /= sum;
+        }
+
+        int next(Random random) {
+            int i = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+        }
+    }
+
+    private static void add(Map<String, List<Long>> timings, String name, long start) {
+        List<Long> values = timings.get(name);
+        if (values == null) {
+            values = new ArrayList<>();
+            timings.put(name, values);
+        }
+        values.add(System.nanoTime() - start);
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String format(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+}
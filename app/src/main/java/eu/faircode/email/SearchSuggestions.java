@@ -0,0 +1,241 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+
+// Sorted arrays of lower case keys for fast prefix lookups
+public class SearchSuggestions {
+    private static Index terms = null;
+    private static Index frequent = null;
+    private static long frequentBuilt = 0;
+
+    static final int MAX_TERMS = 20000; // most frequent indexed terms
+    static final int MAX_ADDED = 20000; // terms indexed after loading
+    private static final int MAX_FREQUENT = 1000; // most frequent senders and subjects
+    private static final int MAX_SCAN = 5000; // keys per lookup
+    private static final long FREQUENT_VALIDITY = 15 * 60 * 1000L; // milliseconds
+
+    static List<String> getTerms(Context context, String prefix, int max) {
+        Index index;
+        synchronized (SearchSuggestions.class) {
+            if (terms == null) {
+                long start = new Date().getTime();
+                SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
+                List<String> values = FtsDbHelper.getTerms(sdb, MAX_TERMS);
+                List<Entry> entries = new ArrayList<>(values.size());
+                for (int i = 0; i < values.size(); i++)
+                    entries.add(new Entry(values.get(i), i, values.get(i)));
+                terms = new Index(entries);
+                Log.i("Suggestions terms=" + values.size() +
+                        " elapsed=" + (new Date().getTime() - start) + " ms");
+            }
+            index = terms;
+        }
+
+        List<String> result = index.find(prefix, max);
+        if (result.isEmpty()) {
+            // Less frequent terms
+            SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
+            result = FtsDbHelper.getTerms(sdb, prefix.toLowerCase(Locale.ROOT), max);
+        }
+        return result;
+    }
+
+    static boolean hasTerms() {
+        synchronized (SearchSuggestions.class) {
+            return (terms != null);
+        }
+    }
+
+    static void addTerms(Collection<String> words) {
+        // Merge newly indexed terms rather than reloading the most frequent terms on the next lookup
+        Index index;
+        synchronized (SearchSuggestions.class) {
+            index = terms;
+        }
+        if (index == null || words.isEmpty())
+            return;
+
+        long start = new Date().getTime();
+        Index merged = index.merge(words, MAX_TERMS + MAX_ADDED);
+        synchronized (SearchSuggestions.class) {
+            if (terms == index)
+                terms = merged;
+        }
+        Log.i("Suggestions added=" + words.size() + " terms=" + merged.keys.length +
+                " elapsed=" + (new Date().getTime() - start) + " ms");
+    }
+
+    static void addWords(String text, Collection<String> words, int max) {
+        // Approximation of the unicode61 tokenizer with remove_diacritics
+        if (TextUtils.isEmpty(text))
+            return;
+        String normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "");
+        for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (words.size() >= max)
+                break;
+            if (word.length() > 0)
+                words.add(word);
+        }
+    }
+
+    static List<String> getFrequent(Context context, String prefix, int max) {
+        Index index;
+        synchronized (SearchSuggestions.class) {
+            long now = new Date().getTime();
+            if (frequent == null || frequentBuilt + FREQUENT_VALIDITY < now) {
+                DB db = DB.getInstance(context);
+                List<String> values = new ArrayList<>();
+                values.addAll(db.message().getFrequentSenders(MAX_FREQUENT));
+                values.addAll(db.message().getFrequentSubjects(MAX_FREQUENT));
+
+                // Make every word of a sender or subject a key
+                List<Entry> entries = new ArrayList<>();
+                for (int i = 0; i < values.size(); i++) {
+                    String value = values.get(i);
+                    if (TextUtils.isEmpty(value))
+                        continue;
+                    String lower = value.toLowerCase(Locale.ROOT);
+                    entries.add(new Entry(lower, i, value));
+                    for (String word : lower.split("[\\s\\p{Punct}]+"))
+                        if (word.length() > 0 && !lower.startsWith(word))
+                            entries.add(new Entry(word, i, value));
+                }
+                frequent = new Index(entries);
+                frequentBuilt = now;
+                Log.i("Suggestions frequent=" + values.size() + " keys=" + entries.size() +
+                        " elapsed=" + (new Date().getTime() - now) + " ms");
+            }
+            index = frequent;
+        }
+        return index.find(prefix, max);
+    }
+
+    static void invalidate() {
+        synchronized (SearchSuggestions.class) {
+            terms = null;
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final int rank; // lower is more frequent
+        private final String value;
+
+        Entry(String key, int rank, String value) {
+            this.key = key;
+            this.rank = rank;
+            this.value = value;
+        }
+    }
+
+    private static class Index {
+        private final String[] keys;
+        private final int[] ranks;
+        private final String[] values;
+
+        Index(List<Entry> entries) {
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return e1.key.compareTo(e2.key);
+                }
+            });
+
+            keys = new String[entries.size()];
+            ranks = new int[entries.size()];
+            values = new String[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                keys[i] = entry.key;
+                ranks[i] = entry.rank;
+                values[i] = entry.value;
+            }
+        }
+
+        Index merge(Collection<String> words, int max) {
+            List<Entry> entries = new ArrayList<>(keys.length + words.size());
+            for (int i = 0; i < keys.length; i++)
+                entries.add(new Entry(keys[i], ranks[i], values[i]));
+            for (String word : words) {
+                if (entries.size() >= max)
+                    break;
+                // Less frequent than the loaded terms
+                if (Arrays.binarySearch(keys, word) < 0)
+                    entries.add(new Entry(word, Integer.MAX_VALUE, word));
+            }
+            return new Index(entries);
+        }
+
+        List<String> find(String prefix, int max) {
+            List<String> result = new ArrayList<>();
+            if (TextUtils.isEmpty(prefix) || max <= 0)
+                return result;
+
+            prefix = prefix.toLowerCase(Locale.ROOT);
+
+            // Lower bound
+            int i = Arrays.binarySearch(keys, prefix);
+            if (i < 0)
+                i = -i - 1;
+
+            // Keep the most frequent matches
+            List<Integer> best = new ArrayList<>();
+            for (int n = 0; i < keys.length && n < MAX_SCAN && keys[i].startsWith(prefix); i++, n++) {
+                boolean duplicate = false;
+                for (int b : best)
+                    if (values[b].equals(values[i])) {
+                        duplicate = true;
+                        break;
+                    }
+                if (duplicate)
+                    continue;
+
+                int pos = best.size();
+                while (pos > 0 && ranks[best.get(pos - 1)] > ranks[i])
+                    pos--;
+                if (pos < max) {
+                    best.add(pos, i);
+                    if (best.size() > max)
+                        best.remove(max);
+                }
+            }
+
+            for (int b : best)
+                result.add(values[b]);
+            return result;
+        }
+    }
+}
@@ -60,7 +60,9 @@ import com.sun.mail.iap.Argument;
 import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IdleManager;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.imap.protocol.IMAPProtocol;
 import com.sun.mail.imap.protocol.IMAPResponse;
 
@@ -81,6 +83,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -96,6 +99,7 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Quota;
 import javax.mail.ReadOnlyFolderException;
+import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.StoreClosedException;
 import javax.mail.event.FolderAdapter;
@@ -123,7 +127,11 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
     private final MutableLiveData<List<TupleAccountState>> liveAccountState = new MutableLiveData<>();
     private final MediatorState liveAccountNetworkState = new MediatorState();
 
+    private IdleManager idleManager = null;
+    private final Object idleLock = new Object();
+
     private static final ExecutorService executor = Helper.getBackgroundExecutor(1, "sync");
+    private static final ExecutorService idleExecutor = Helper.getBackgroundExecutor(0, "idle");
 
     private static final long BACKUP_DELAY = 30 * 1000L; // milliseconds
     private static final long PURGE_DELAY = 30 * 1000L; // milliseconds
@@ -983,6 +991,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
         liveAccountNetworkState.postDestroy();
 
+        stopIdleManager();
+
         TTSHelper.shutdown();
 
         try {
@@ -1505,8 +1515,6 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 Log.i(account.name + " run thread=" + currentThread);
 
                 final ObjectHolder<TwoStateOwner> cowner = new ObjectHolder<>();
-                final ExecutorService executor =
-                        Helper.getBackgroundExecutor(1, "account_" + account.id);
 
                 // Debug
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -1514,12 +1522,25 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 boolean keep_alive_poll = prefs.getBoolean("keep_alive_poll", false);
                 boolean empty_pool = prefs.getBoolean("empty_pool", true);
                 boolean debug = (prefs.getBoolean("debug", false) || BuildConfig.DEBUG);
+                int max_connections = (account.protocol == EntityAccount.TYPE_IMAP
+                        ? prefs.getInt("max_connections", EmailService.DEFAULT_MAX_CONNECTIONS)
+                        : 1);
+                boolean idle_manager = (account.protocol == EntityAccount.TYPE_IMAP &&
+                        prefs.getBoolean("idle_manager", false));
+
+                // Operations on different folders can be executed in parallel
+                final ExecutorService executor =
+                        Helper.getBackgroundExecutor(Math.max(1, max_connections), true, "account_" + account.id);
 
                 final EmailService iservice = new EmailService(
                         this, account.getProtocol(), account.realm, account.encryption, account.insecure, debug);
                 iservice.setPartialFetch(account.partial_fetch);
                 iservice.setIgnoreBodyStructureSize(account.ignore_size);
-                if (account.protocol != EntityAccount.TYPE_IMAP)
+                iservice.setCompress(account.compress);
+                if (account.protocol == EntityAccount.TYPE_IMAP) {
+                    iservice.setMaxConnections(max_connections);
+                    iservice.setUseSocketChannels(idle_manager);
+                } else
                     iservice.setLeaveOnServer(account.leave_on_server);
 
                 final Date lastStillHere = new Date(0);
@@ -1553,7 +1574,9 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                 EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, account,
                                         account.name + " alert: " + message);
 
-                                if (!ConnectionHelper.isMaxConnections(message))
+                                if (ConnectionHelper.isMaxConnections(message))
+                                    iservice.reduceMaxConnections();
+                                else
                                     try {
                                         NotificationManager nm =
                                                 Helper.getSystemService(ServiceSynchronize.this, NotificationManager.class);
@@ -1757,7 +1780,11 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             try {
                                 if (BuildConfig.DEBUG && "Postausgang".equals(folder.name))
                                     throw new ReadOnlyFolderException(ifolder);
-                                ifolder.open(Folder.READ_WRITE);
+                                ResyncData rd = Core.getResyncData(this, folder, (IMAPStore) iservice.getStore());
+                                if (rd == null)
+                                    ifolder.open(Folder.READ_WRITE);
+                                else
+                                    Core.onResync(this, folder, ifolder.open(Folder.READ_WRITE, rd));
                                 folder.read_only = ifolder.getUIDNotSticky();
                                 db.folder().setFolderReadOnly(folder.id, folder.read_only);
                             } catch (ReadOnlyFolderException ex) {
@@ -1850,6 +1877,9 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " added " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        // Events can end idling without queuing operations
+                                        if (idle_manager)
+                                            rewatch(folder, ifolder, state);
                                         wlMessage.release();
                                     }
                                 }
@@ -1866,6 +1896,9 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " removed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        // Events can end idling without queuing operations
+                                        if (idle_manager)
+                                            rewatch(folder, ifolder, state);
                                         wlMessage.release();
                                     }
                                 }
@@ -1888,35 +1921,42 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " changed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        // Events can end idling without queuing operations
+                                        if (idle_manager)
+                                            rewatch(folder, ifolder, state);
                                         wlMessage.release();
                                     }
                                 }
                             });
 
                             // Idle folder
-                            Thread idler = new Thread(new RunnableEx("idle") {
-                                @Override
-                                public void delegate() {
-                                    try {
-                                        Log.i(folder.name + " start idle");
-                                        while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
-                                            Log.i(folder.name + " do idle");
-                                            ifolder.idle(false);
-                                            state.activity();
+                            if (idle_manager)
+                                watch(ifolder);
+                            else {
+                                Thread idler = new Thread(new RunnableEx("idle") {
+                                    @Override
+                                    public void delegate() {
+                                        try {
+                                            Log.i(folder.name + " start idle");
+                                            while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
+                                                Log.i(folder.name + " do idle");
+                                                ifolder.idle(false);
+                                                state.activity();
+                                            }
+                                        } catch (Throwable ex) {
+                                            Log.e(folder.name, ex);
+                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                                    account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
+                                            state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
+                                        } finally {
+                                            Log.i(folder.name + " end idle");
                                         }
-                                    } catch (Throwable ex) {
-                                        Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
-                                                account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
-                                        state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
-                                    } finally {
-                                        Log.i(folder.name + " end idle");
                                     }
-                                }
-                            }, "idler." + folder.id);
-                            idler.setPriority(THREAD_PRIORITY_BACKGROUND);
-                            idler.start();
-                            idlers.add(idler);
+                                }, "idler." + folder.id);
+                                idler.setPriority(THREAD_PRIORITY_BACKGROUND);
+                                idler.start();
+                                idlers.add(idler);
+                            }
 
                             EntityOperation.sync(this, folder.id, false, force && !forced);
 
@@ -1979,9 +2019,26 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             cowner.value.start();
 
                             db.operation().liveOperations(account.id).observe(cowner.value, new Observer<List<TupleOperationEx>>() {
-                                private DutyCycle dc = new DutyCycle(account.name + " operations");
                                 private List<Long> handling = new ArrayList<>();
                                 private final Map<TupleOperationEx.PartitionKey, List<TupleOperationEx>> partitions = new HashMap<>();
+                                private final Map<Long, List<TupleOperationEx.PartitionKey>> queued = new HashMap<>();
+                                private final List<Long> running = new ArrayList<>();
+                                private final Map<Long, DutyCycle> cycles = new HashMap<>();
+
+                                private final Comparator<TupleOperationEx.PartitionKey> comparator = new Comparator<TupleOperationEx.PartitionKey>() {
+                                    @Override
+                                    public int compare(TupleOperationEx.PartitionKey k1, TupleOperationEx.PartitionKey k2) {
+                                        Integer p1 = k1.getPriority();
+                                        Integer p2 = k2.getPriority();
+                                        int priority = p1.compareTo(p2);
+                                        if (priority == 0) {
+                                            Long o1 = k1.getOrder();
+                                            Long o2 = k2.getOrder();
+                                            return o1.compareTo(o2);
+                                        } else
+                                            return priority;
+                                    }
+                                };
 
                                 private final PowerManager.WakeLock wlOperations = pm.newWakeLock(
                                         PowerManager.PARTIAL_WAKE_LOCK, BuildConfig.APPLICATION_ID + ":operations." + account.id);
@@ -2039,187 +2096,237 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                             }
                                         }
 
-                                        Collections.sort(keys, new Comparator<TupleOperationEx.PartitionKey>() {
-                                            @Override
-                                            public int compare(TupleOperationEx.PartitionKey k1, TupleOperationEx.PartitionKey k2) {
-                                                Integer p1 = k1.getPriority();
-                                                Integer p2 = k2.getPriority();
-                                                int priority = p1.compareTo(p2);
-                                                if (priority == 0) {
-                                                    Long o1 = k1.getOrder();
-                                                    Long o2 = k2.getOrder();
-                                                    return o1.compareTo(o2);
-                                                } else
-                                                    return priority;
+                                        synchronized (queued) {
+                                            List<TupleOperationEx.PartitionKey> pending = queued.get(folder.id);
+                                            if (pending == null) {
+                                                pending = new ArrayList<>();
+                                                queued.put(folder.id, pending);
                                             }
-                                        });
-
-                                        for (TupleOperationEx.PartitionKey key : keys) {
-                                            int ops;
-                                            synchronized (partitions) {
-                                                ops = partitions.get(key).size();
-                                                Log.i(account.name + "/" + folder.name +
-                                                        " queuing partition=" + key +
-                                                        " serial=" + serial +
-                                                        " operations=" + ops);
+
+                                            for (TupleOperationEx.PartitionKey key : keys) {
+                                                int ops;
+                                                synchronized (partitions) {
+                                                    ops = partitions.get(key).size();
+                                                    Log.i(account.name + "/" + folder.name +
+                                                            " queuing partition=" + key +
+                                                            " serial=" + serial +
+                                                            " operations=" + ops);
+                                                }
+
+                                                Map<String, String> crumb = new HashMap<>();
+                                                crumb.put("account", folder.account == null ? null : Long.toString(folder.account));
+                                                crumb.put("folder", folder.name + "/" + folder.type + ":" + folder.id);
+                                                crumb.put("partition", key.toString());
+                                                crumb.put("operations", Integer.toString(ops));
+                                                crumb.put("serial", Long.toString(serial));
+                                                Log.breadcrumb("Queuing", crumb);
+
+                                                pending.add(key);
                                             }
+                                            Collections.sort(pending, comparator);
 
-                                            Map<String, String> crumb = new HashMap<>();
-                                            crumb.put("account", folder.account == null ? null : Long.toString(folder.account));
-                                            crumb.put("folder", folder.name + "/" + folder.type + ":" + folder.id);
-                                            crumb.put("partition", key.toString());
-                                            crumb.put("operations", Integer.toString(ops));
-                                            crumb.put("serial", Long.toString(serial));
-                                            Log.breadcrumb("Queuing", crumb);
-
-                                            executor.submit(new Helper.PriorityRunnable(key.getPriority(), key.getOrder()) {
-                                                @Override
-                                                public void run() {
-                                                    super.run();
-                                                    try {
-                                                        wlOperations.acquire();
+                                            // Operations on the same folder are executed sequentially
+                                            if (!running.contains(folder.id)) {
+                                                running.add(folder.id);
+                                                scheduleFolder(folder);
+                                            }
+                                        }
+                                    }
+                                }
 
-                                                        List<TupleOperationEx> partition;
-                                                        synchronized (partitions) {
-                                                            partition = partitions.get(key);
-                                                            partitions.remove(key);
-                                                        }
+                                private void scheduleFolder(final EntityFolder folder) {
+                                    // Called with the queue locked
+                                    TupleOperationEx.PartitionKey first = queued.get(folder.id).get(0);
+                                    executor.submit(new Helper.PriorityRunnable(first.getPriority(), first.getOrder()) {
+                                        @Override
+                                        public void run() {
+                                            super.run();
+                                            try {
+                                                // Execute the partition with the highest priority at this moment
+                                                TupleOperationEx.PartitionKey key;
+                                                synchronized (queued) {
+                                                    key = queued.get(folder.id).remove(0);
+                                                }
+                                                executePartition(folder, key);
+                                            } finally {
+                                                synchronized (queued) {
+                                                    if (queued.get(folder.id).size() == 0)
+                                                        running.remove(folder.id);
+                                                    else
+                                                        scheduleFolder(folder);
+                                                }
+                                            }
+                                        }
+                                    });
+                                }
+
+                                private void executePartition(final EntityFolder folder, final TupleOperationEx.PartitionKey key) {
+                                    // Only used by the sequential executions of the folder
+                                    DutyCycle dc;
+                                    synchronized (queued) {
+                                        dc = cycles.get(folder.id);
+                                        if (dc == null) {
+                                            dc = new DutyCycle(account.name + "/" + folder.name + " operations");
+                                            cycles.put(folder.id, dc);
+                                        }
+                                    }
+
+                                    try {
+                                        wlOperations.acquire();
 
-                                                        Log.i(account.name + "/" + folder.name +
-                                                                " executing partition=" + key +
-                                                                " serial=" + serial +
-                                                                " operations=" + partition.size());
-
-                                                        Map<String, String> crumb = new HashMap<>();
-                                                        crumb.put("account", folder.account == null ? null : Long.toString(folder.account));
-                                                        crumb.put("folder", folder.name + "/" + folder.type + ":" + folder.id);
-                                                        crumb.put("partition", key.toString());
-                                                        crumb.put("operations", Integer.toString(partition.size()));
-                                                        crumb.put("serial", Long.toString(serial));
-                                                        Log.breadcrumb("Executing", crumb);
-
-                                                        // Get folder
-                                                        Folder ifolder = mapFolders.get(folder); // null when polling
-                                                        boolean canOpen = (EntityFolder.INBOX.equals(folder.type) ||
-                                                                (account.protocol == EntityAccount.TYPE_IMAP && !folder.local));
-                                                        final boolean shouldClose = (ifolder == null && canOpen);
-
-                                                        try {
-                                                            Log.i(account.name + "/" + folder.name + " run " + (shouldClose ? "offline" : "online"));
-
-                                                            if (shouldClose) {
-                                                                // Prevent unnecessary folder connections
-                                                                if (db.operation().getOperationCount(folder.id, null) == 0)
-                                                                    return;
-
-                                                                db.folder().setFolderState(folder.id, "connecting");
-
-                                                                try {
-                                                                    ifolder = iservice.getStore().getFolder(folder.name);
-                                                                } catch (IllegalStateException ex) {
-                                                                    if ("Not connected".equals(ex.getMessage())) {
-                                                                        Log.i(ex);
-                                                                        return; // Store closed
-                                                                    } else
-                                                                        throw ex;
-                                                                }
-
-                                                                try {
-                                                                    try {
-                                                                        ifolder.open(Folder.READ_WRITE);
-                                                                        if (ifolder instanceof IMAPFolder) {
-                                                                            folder.read_only = ((IMAPFolder) ifolder).getUIDNotSticky();
-                                                                            db.folder().setFolderReadOnly(folder.id, folder.read_only);
-                                                                        }
-                                                                    } catch (ReadOnlyFolderException ex) {
-                                                                        Log.w(folder.name + " read only");
-                                                                        ifolder.open(Folder.READ_ONLY);
-                                                                        folder.read_only = true;
-                                                                        db.folder().setFolderReadOnly(folder.id, folder.read_only);
-                                                                    }
-                                                                } catch (MessagingException ex) {
-                                                                    /*
-                                                                        javax.mail.MessagingException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).;
-                                                                          nested exception is:
-                                                                            com.sun.mail.iap.CommandFailedException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).
-                                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:61)
-                                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:1)
-                                                                            at eu.faircode.email.ServiceSynchronize$19$1$2.run(SourceFile:30)
-                                                                            at java.util.concurrent.Executors$RunnableAdapter.call(Executors.java:459)
-                                                                            at java.util.concurrent.FutureTask.run(FutureTask.java:266)
-                                                                            at eu.faircode.email.Helper$PriorityFuture.run(SourceFile:1)
-                                                                            at java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:1167)
-                                                                            at java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:641)
-                                                                            at java.lang.Thread.run(Thread.java:764)
-                                                                        Caused by: com.sun.mail.iap.CommandFailedException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).
-                                                                            at com.sun.mail.iap.Protocol.handleResult(SourceFile:8)
-                                                                            at com.sun.mail.imap.protocol.IMAPProtocol.select(SourceFile:19)
-                                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:16)
-                                                                     */
-                                                                    if (ex.getCause() instanceof ProtocolException &&
-                                                                            !ConnectionHelper.isIoError(ex))
-                                                                        throw new FolderNotFoundException(ifolder, ex.getMessage(), ex);
-                                                                    else
-                                                                        throw ex;
-                                                                }
-
-                                                                db.folder().setFolderState(folder.id, "connected");
-                                                                db.folder().setFolderError(folder.id, null);
-
-                                                                int count = MessageHelper.getMessageCount(ifolder);
-                                                                db.folder().setFolderTotal(folder.id, count < 0 ? null : count);
-
-                                                                Log.i(account.name + " folder " + folder.name + " flags=" + ifolder.getPermanentFlags());
-                                                            }
-
-                                                            try {
-                                                                dc.start();
-                                                                Core.processOperations(ServiceSynchronize.this,
-                                                                        account, folder,
-                                                                        partition,
-                                                                        iservice, ifolder,
-                                                                        state, serial);
-                                                            } finally {
-                                                                dc.stop(state.getForeground(), executor);
-                                                            }
-
-                                                        } catch (Throwable ex) {
-                                                            if (ex instanceof OperationCanceledException ||
-                                                                    (ex instanceof IllegalStateException &&
-                                                                            "Folder not open".equals(ex.getMessage())))
-                                                                Log.i(folder.name, ex); // Illegal state: getMessageCount
-                                                            else
-                                                                Log.e(folder.name, ex);
-                                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
-                                                                    account.name + "/" + folder.name + " process " + Log.formatThrowable(ex, false));
-                                                            db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
-
-                                                            if (!(ex instanceof FolderNotFoundException))
-                                                                state.error(new Core.OperationCanceledExceptionEx("Process", ex));
-                                                        } finally {
-                                                            if (shouldClose) {
-                                                                if (ifolder != null && ifolder.isOpen()) {
-                                                                    db.folder().setFolderState(folder.id, "closing");
-                                                                    try {
-                                                                        ifolder.close(false);
-                                                                    } catch (Throwable ex) {
-                                                                        Log.w(folder.name, ex);
-                                                                    }
-                                                                }
-                                                                db.folder().setFolderState(folder.id, null);
-                                                            }
+                                        List<TupleOperationEx> partition;
+                                        synchronized (partitions) {
+                                            partition = partitions.get(key);
+                                            partitions.remove(key);
+                                        }
+
+                                        Log.i(account.name + "/" + folder.name +
+                                                " executing partition=" + key +
+                                                " serial=" + serial +
+                                                " operations=" + partition.size());
+
+                                        Map<String, String> crumb = new HashMap<>();
+                                        crumb.put("account", folder.account == null ? null : Long.toString(folder.account));
+                                        crumb.put("folder", folder.name + "/" + folder.type + ":" + folder.id);
+                                        crumb.put("partition", key.toString());
+                                        crumb.put("operations", Integer.toString(partition.size()));
+                                        crumb.put("serial", Long.toString(serial));
+                                        Log.breadcrumb("Executing", crumb);
+
+                                        // Get folder
+                                        Folder ifolder = mapFolders.get(folder); // null when polling
+                                        boolean canOpen = (EntityFolder.INBOX.equals(folder.type) ||
+                                                (account.protocol == EntityAccount.TYPE_IMAP && !folder.local));
+                                        final boolean shouldClose = (ifolder == null && canOpen);
+                                        boolean leased = false;
+
+                                        try {
+                                            Log.i(account.name + "/" + folder.name + " run " + (shouldClose ? "offline" : "online"));
+
+                                            if (shouldClose) {
+                                                // Prevent unnecessary folder connections
+                                                if (db.operation().getOperationCount(folder.id, null) == 0)
+                                                    return;
+
+                                                iservice.lease();
+                                                leased = true;
+
+                                                db.folder().setFolderState(folder.id, "connecting");
+
+                                                try {
+                                                    ifolder = iservice.getStore().getFolder(folder.name);
+                                                } catch (IllegalStateException ex) {
+                                                    if ("Not connected".equals(ex.getMessage())) {
+                                                        Log.i(ex);
+                                                        return; // Store closed
+                                                    } else
+                                                        throw ex;
+                                                }
+
+                                                try {
+                                                    try {
+                                                        ResyncData rd = (ifolder instanceof IMAPFolder
+                                                                ? Core.getResyncData(ServiceSynchronize.this, folder, (IMAPStore) iservice.getStore())
+                                                                : null);
+                                                        if (rd == null)
+                                                            ifolder.open(Folder.READ_WRITE);
+                                                        else
+                                                            Core.onResync(ServiceSynchronize.this, folder,
+                                                                    ((IMAPFolder) ifolder).open(Folder.READ_WRITE, rd));
+                                                        if (ifolder instanceof IMAPFolder) {
+                                                            folder.read_only = ((IMAPFolder) ifolder).getUIDNotSticky();
+                                                            db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                                         }
+                                                    } catch (ReadOnlyFolderException ex) {
+                                                        Log.w(folder.name + " read only");
+                                                        ifolder.open(Folder.READ_ONLY);
+                                                        folder.read_only = true;
+                                                        db.folder().setFolderReadOnly(folder.id, folder.read_only);
+                                                    }
+                                                } catch (MessagingException ex) {
+                                                    /*
+                                                        javax.mail.MessagingException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).;
+                                                          nested exception is:
+                                                            com.sun.mail.iap.CommandFailedException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).
+                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:61)
+                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:1)
+                                                            at eu.faircode.email.ServiceSynchronize$19$1$2.run(SourceFile:30)
+                                                            at java.util.concurrent.Executors$RunnableAdapter.call(Executors.java:459)
+                                                            at java.util.concurrent.FutureTask.run(FutureTask.java:266)
+                                                            at eu.faircode.email.Helper$PriorityFuture.run(SourceFile:1)
+                                                            at java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:1167)
+                                                            at java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:641)
+                                                            at java.lang.Thread.run(Thread.java:764)
+                                                        Caused by: com.sun.mail.iap.CommandFailedException: GS38 NO Mailbox doesn't exist: 0 XXX (0.020 + 0.000 + 0.019 secs).
+                                                            at com.sun.mail.iap.Protocol.handleResult(SourceFile:8)
+                                                            at com.sun.mail.imap.protocol.IMAPProtocol.select(SourceFile:19)
+                                                            at com.sun.mail.imap.IMAPFolder.open(SourceFile:16)
+                                                     */
+                                                    if (ex.getCause() instanceof ProtocolException &&
+                                                            !ConnectionHelper.isIoError(ex))
+                                                        throw new FolderNotFoundException(ifolder, ex.getMessage(), ex);
+                                                    else
+                                                        throw ex;
+                                                }
+
+                                                db.folder().setFolderState(folder.id, "connected");
+                                                db.folder().setFolderError(folder.id, null);
+
+                                                int count = MessageHelper.getMessageCount(ifolder);
+                                                db.folder().setFolderTotal(folder.id, count < 0 ? null : count);
+
+                                                Log.i(account.name + " folder " + folder.name + " flags=" + ifolder.getPermanentFlags());
+                                            }
+
+                                            try {
+                                                dc.start();
+                                                Core.processOperations(ServiceSynchronize.this,
+                                                        account, folder,
+                                                        partition,
+                                                        iservice, ifolder,
+                                                        state, serial);
+                                            } finally {
+                                                dc.stop(state.getForeground(), executor);
+                                            }
+
+                                        } catch (Throwable ex) {
+                                            if (ex instanceof OperationCanceledException ||
+                                                    (ex instanceof IllegalStateException &&
+                                                            "Folder not open".equals(ex.getMessage())))
+                                                Log.i(folder.name, ex); // Illegal state: getMessageCount
+                                            else
+                                                Log.e(folder.name, ex);
+                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                                    account.name + "/" + folder.name + " process " + Log.formatThrowable(ex, false));
+                                            db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
+
+                                            if (!(ex instanceof FolderNotFoundException))
+                                                state.error(new Core.OperationCanceledExceptionEx("Process", ex));
+                                        } finally {
+                                            if (shouldClose) {
+                                                if (ifolder != null && ifolder.isOpen()) {
+                                                    db.folder().setFolderState(folder.id, "closing");
+                                                    try {
+                                                        ifolder.close(false);
                                                     } catch (Throwable ex) {
-                                                        if ("Not connected".equals(ex.getMessage()))
-                                                            Log.i(ex);
-                                                        else
-                                                            Log.e(ex);
-                                                    } finally {
-                                                        wlOperations.release();
+                                                        Log.w(folder.name, ex);
                                                     }
                                                 }
-                                            });
+                                                db.folder().setFolderState(folder.id, null);
+                                            } else if (idle_manager && ifolder instanceof IMAPFolder) {
+                                                // Executing commands ends idling
+                                                rewatch(folder, (IMAPFolder) ifolder, state);
+                                            }
+                                            if (leased)
+                                                iservice.release();
                                         }
+                                    } catch (Throwable ex) {
+                                        if ("Not connected".equals(ex.getMessage()))
+                                            Log.i(ex);
+                                        else
+                                            Log.e(ex);
+                                    } finally {
+                                        wlOperations.release();
                                     }
                                 }
                             });
@@ -2275,12 +2382,16 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             if (sync) {
                                 EntityLog.log(this, EntityLog.Type.Account, account,
                                         account.name + " checking folders");
+                                EntityLog.log(this, EntityLog.Type.Statistics, account,
+                                        account.name + " pool " + iservice.getPoolStats());
                                 for (EntityFolder folder : mapFolders.keySet())
                                     if (folder.selectable && folder.synchronize)
                                         if (!folder.poll && capIdle) {
                                             // Sends folder NOOP
                                             if (!mapFolders.get(folder).isOpen())
                                                 throw new StoreClosedException(iservice.getStore(), "NOOP " + folder.name);
+                                            if (idle_manager)
+                                                watch(mapFolders.get(folder));
                                             if (keep_alive_poll)
                                                 EntityOperation.poll(this, folder.id);
                                         } else {
@@ -2673,6 +2784,55 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
         }
     }
 
+    private void watch(IMAPFolder ifolder) throws MessagingException {
+        // https://javaee.github.io/javamail/docs/api/com/sun/mail/imap/IdleManager.html
+        IdleManager im;
+        synchronized (idleLock) {
+            if (idleManager == null)
+                try {
+                    idleManager = new IdleManager(Session.getInstance(new Properties(), null), idleExecutor);
+                } catch (IOException ex) {
+                    throw new MessagingException("IdleManager", ex);
+                }
+            im = idleManager;
+        }
+
+        try {
+            Log.i(ifolder.getName() + " watch");
+            im.watch(ifolder);
+        } catch (MessagingException ex) {
+            // The select thread ends on unexpected errors
+            synchronized (idleLock) {
+                if (idleManager == im && !im.isRunning()) {
+                    Log.w("IdleManager not running");
+                    im.stop();
+                    idleManager = null;
+                }
+            }
+            // Folders can still refer to the old manager, so reconnect to get new folders
+            throw new FolderClosedException(ifolder, "IDLE " + ex.getMessage());
+        }
+    }
+
+    private void rewatch(EntityFolder folder, IMAPFolder ifolder, Core.State state) {
+        try {
+            watch(ifolder);
+        } catch (Throwable ex) {
+            Log.w(folder.name, ex);
+            state.error(ex);
+        }
+    }
+
+    private void stopIdleManager() {
+        synchronized (idleLock) {
+            if (idleManager != null) {
+                Log.i("IdleManager stop");
+                idleManager.stop();
+                idleManager = null;
+            }
+        }
+    }
+
     private void updateQuota(Context context, IMAPStore istore, EntityAccount account) {
         DB db = DB.getInstance(this);
         try {
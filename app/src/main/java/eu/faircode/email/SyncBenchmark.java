@@ -0,0 +1,276 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.Session;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeMessage;
+
+// Times parsing and persisting downloaded messages on a synthetic mailbox in a throwaway database
+// The messages are generated from a fixed seed, so results can be compared across releases
+// A mail server is not needed, so network latency is not included
+public class SyncBenchmark {
+    static final int[] SIZES = new int[]{1000, 10000, 100000};
+
+    private static final String DB_NAME = "benchmark_sync.db";
+
+    private static final long SEED = 20220601L;
+    private static final long ID_BASE = 1L << 41; // no message files of the device
+    private static final long RECEIVED_BASE = 1640995200000L; // 2022-01-01
+    private static final int VOCABULARY = 50000;
+    private static final int SENDERS = 5000;
+
+    static String run(Context context, int size) throws Throwable {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int sync_transaction = prefs.getInt("sync_transaction", Core.DEFAULT_SYNC_TRANSACTION);
+
+        List<Integer> batches = new ArrayList<>();
+        batches.add(1);
+        if (sync_transaction > 1)
+            batches.add(sync_transaction);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("messages=").append(size)
+                .append(" sync_transaction=").append(sync_transaction)
+                .append("\r\n");
+
+        for (int batch : batches)
+            try {
+                context.deleteDatabase(DB_NAME);
+                DB db = DB.getBenchmarkInstance(context, DB_NAME);
+                try {
+                    sb.append(run(context, db, size, batch)).append("\r\n");
+                } finally {
+                    db.close();
+                }
+            } finally {
+                context.deleteDatabase(DB_NAME);
+                for (int n = 0; n < size; n++) {
+                    EntityMessage.getFile(context, ID_BASE + n).delete();
+                    EntityMessage.getTextFile(context, ID_BASE + n).delete();
+                }
+            }
+
+        String result = sb.toString();
+        EntityLog.log(context, EntityLog.Type.Statistics, "Sync benchmark " + result);
+        return result;
+    }
+
+    private static String run(Context context, DB db, int size, int batch) throws Throwable {
+        Random random = new Random(SEED);
+        SearchBenchmark.Zipf words = new SearchBenchmark.Zipf(VOCABULARY);
+        SearchBenchmark.Zipf senders = new SearchBenchmark.Zipf(SENDERS);
+        MailDateFormat mdf = new MailDateFormat();
+        Session isession = Session.getInstance(new Properties(), null);
+
+        EntityAccount account = new EntityAccount();
+        account.host = "imap.example.com";
+        account.port = 993;
+        account.auth_type = ServiceAuthenticator.AUTH_TYPE_PASSWORD;
+        account.user = "me@example.com";
+        account.password = "";
+        account.name = "Benchmark";
+        account.synchronize = false;
+        account.primary = false;
+        account.id = db.account().insertAccount(account);
+
+        EntityFolder folder = new EntityFolder();
+        folder.account = account.id;
+        folder.name = EntityFolder.INBOX;
+        folder.type = EntityFolder.INBOX;
+        folder.synchronize = false;
+        folder.sync_days = EntityFolder.DEFAULT_SYNC;
+        folder.keep_days = EntityFolder.DEFAULT_KEEP;
+        folder.id = db.folder().insertFolder(folder);
+
+        Runtime rt = Runtime.getRuntime();
+        rt.gc();
+        long heap = rt.totalMemory() - rt.freeMemory();
+
+        long bytes = 0;
+        long parse = 0;
+        long persist = 0;
+        long content = 0;
+        int commits = 0;
+
+        long start = System.nanoTime();
+        List<EntityMessage> added = new ArrayList<>();
+        List<MessageHelper.MessageParts> pending = new ArrayList<>();
+        for (int i = 0; i < size; i += batch) {
+            // Parse like a fetched message
+            long t = System.nanoTime();
+            for (int n = i; n < Math.min(size, i + batch); n++) {
+                byte[] raw = generate(random, words, senders, mdf, n);
+                bytes += raw.length;
+
+                MimeMessage imessage = new MimeMessage(isession, new ByteArrayInputStream(raw));
+                MessageHelper helper = new MessageHelper(imessage, context);
+                MessageHelper.MessageParts parts = helper.getMessageParts();
+
+                EntityMessage message = new EntityMessage();
+                message.id = ID_BASE + n;
+                message.account = account.id;
+                message.folder = folder.id;
+                message.uid = (long) n + 1;
+                message.msgid = helper.getMessageID();
+                message.thread = message.msgid;
+                message.from = helper.getFrom();
+                message.to = helper.getTo();
+                message.subject = helper.getSubject();
+                message.sent = helper.getSent();
+                message.received = (message.sent == null ? RECEIVED_BASE : message.sent);
+                message.size = parts.getBodySize();
+                message.total = helper.getSize();
+                added.add(message);
+                pending.add(parts);
+            }
+            parse += System.nanoTime() - t;
+
+            // Persist in one transaction per batch
+            t = System.nanoTime();
+            try {
+                db.beginTransaction();
+
+                for (int m = 0; m < added.size(); m++) {
+                    EntityMessage message = added.get(m);
+                    db.message().insertMessage(message);
+
+                    int sequence = 1;
+                    for (EntityAttachment attachment : pending.get(m).getAttachments()) {
+                        attachment.message = message.id;
+                        attachment.sequence = sequence++;
+                        attachment.id = db.attachment().insertAttachment(attachment);
+                    }
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            commits++;
+            persist += System.nanoTime() - t;
+
+            // Download the bodies after committing
+            t = System.nanoTime();
+            for (int m = 0; m < added.size(); m++) {
+                EntityMessage message = added.get(m);
+                MessageHelper.MessageParts parts = pending.get(m);
+
+                File file = message.getFile(context);
+                if (!parts.writeHtml(context, false, null, file))
+                    Helper.writeText(file, parts.getHtml(context, false));
+                String text = HtmlHelper.getFullText(file, HtmlHelper.MAX_FULL_TEXT_SIZE);
+                HtmlHelper.writeFullText(context, message.id, text);
+
+                db.message().setMessageContent(message.id,
+                        true,
+                        null,
+                        parts.isPlainOnly(false),
+                        HtmlHelper.getPreview(text),
+                        null);
+                commits++;
+            }
+            content += System.nanoTime() - t;
+
+            added.clear();
+            pending.clear();
+
+            heap = Math.max(heap, rt.totalMemory() - rt.freeMemory());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return "batch=" + batch +
+                " elapsed=" + elapsed / 1000000L + " ms" +
+                " rate=" + Math.round(size * 1e9 / elapsed) + " msg/s" +
+                " " + Helper.humanReadableByteCount(Math.round(bytes * 1e9 / elapsed)) + "/s" +
+                " commits=" + commits +
+                " parse=" + parse / 1000000L + " ms" +
+                " persist=" + persist / 1000000L + " ms" +
+                " content=" + content / 1000000L + " ms" +
+                " heap=" + Helper.humanReadableByteCount(heap);
+    }
+
+    private static byte[] generate(Random random,
+                                   SearchBenchmark.Zipf words, SearchBenchmark.Zipf senders,
+                                   MailDateFormat mdf, int n) {
+        int s = senders.next(random);
+        String first = SearchBenchmark.capitalize(SearchBenchmark.word(VOCABULARY + 2 * s));
+        String last = SearchBenchmark.capitalize(SearchBenchmark.word(VOCABULARY + 2 * s + 1));
+        String subject = (random.nextInt(10) < 3 ? "Re: " : "") +
+                SearchBenchmark.capitalize(SearchBenchmark.text(random, words, 3 + random.nextInt(6)));
+        String body = SearchBenchmark.text(random, words, 30 + random.nextInt(271));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: ").append(first).append(' ').append(last)
+                .append(" <").append(first.toLowerCase(Locale.ROOT)).append('.').append(last.toLowerCase(Locale.ROOT))
+                .append("@example.com>\r\n");
+        sb.append("To: Me <me@example.com>\r\n");
+        sb.append("Subject: ").append(subject).append("\r\n");
+        sb.append("Date: ").append(mdf.format(new Date(RECEIVED_BASE + n * 60000L))).append("\r\n");
+        sb.append("Message-ID: <").append(n).append("@benchmark.example.com>\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+
+        // Plain text, alternative HTML and plain text with an attachment
+        int kind = random.nextInt(10);
+        if (kind < 6) {
+            sb.append("Content-Type: text/plain; charset=UTF-8\r\n");
+            sb.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+            sb.append(body).append("\r\n");
+        } else {
+            String boundary = "boundary" + n;
+            sb.append("Content-Type: multipart/")
+                    .append(kind < 9 ? "alternative" : "mixed")
+                    .append("; boundary=\"").append(boundary).append("\"\r\n\r\n");
+            sb.append("--").append(boundary).append("\r\n");
+            sb.append("Content-Type: text/plain; charset=UTF-8\r\n");
+            sb.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+            sb.append(body).append("\r\n");
+            sb.append("--").append(boundary).append("\r\n");
+            if (kind < 9) {
+                sb.append("Content-Type: text/html; charset=UTF-8\r\n");
+                sb.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+                sb.append("<html><body><p>").append(body).append("</p></body></html>\r\n");
+            } else {
+                sb.append("Content-Type: text/plain; charset=UTF-8; name=\"notes.txt\"\r\n");
+                sb.append("Content-Disposition: attachment; filename=\"notes.txt\"\r\n");
+                sb.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+                sb.append(SearchBenchmark.text(random, words, 100)).append("\r\n");
+            }
+            sb.append("--").append(boundary).append("--\r\n");
+        }
+
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
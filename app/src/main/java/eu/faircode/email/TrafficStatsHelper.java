@@ -27,4 +27,16 @@ public class TrafficStatsHelper {
     public static void report(String host, String prefix, long sent, long received) {
         Log.persist("Disconnected " + prefix + " " + host + " tx=" + sent + " rx=" + received);
     }
+
+    public static void compression(String host, String prefix,
+                                   long sent, long sent_raw, long received, long received_raw) {
+        Log.persist("Compression " + prefix + " " + host +
+                " tx=" + sent + "/" + sent_raw + " " + ratio(sent, sent_raw) +
+                " rx=" + received + "/" + received_raw + " " + ratio(received, received_raw) +
+                " saved=" + Helper.humanReadableByteCount((sent_raw - sent) + (received_raw - received)));
+    }
+
+    private static String ratio(long compressed, long raw) {
+        return (raw == 0 ? "-" : Math.round(100.0 * compressed / raw) + "%");
+    }
 }
@@ -48,6 +48,7 @@ public class TupleAccountState extends EntityAccount {
                     this.poll_interval.equals(other.poll_interval) &&
                     this.partial_fetch.equals(other.partial_fetch) &&
                     this.ignore_size.equals(other.ignore_size) &&
+                    this.compress.equals(other.compress) &&
                     this.use_date.equals(other.use_date) &&
                     this.use_received.equals(other.use_received) &&
                     Objects.equals(this.conditions, other.conditions) &&
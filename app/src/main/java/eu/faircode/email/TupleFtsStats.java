@@ -25,6 +25,10 @@ public class TupleFtsStats {
     public long fts;
     public long total;
 
+    long getBacklog() {
+        return total - fts;
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (obj instanceof TupleFtsStats) {
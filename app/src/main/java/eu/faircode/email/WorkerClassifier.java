@@ -0,0 +1,216 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Trains the classifier from the messages in the folders selected as classification source
+public class WorkerClassifier extends Worker {
+    private static final int TRAIN_BATCH_SIZE = 100;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(THREADS, false, "classifier");
+
+    private Float throughput = null; // messages/second
+
+    public WorkerClassifier(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+        Log.i("Instance " + getName());
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Thread.currentThread().setPriority(THREAD_PRIORITY_BACKGROUND);
+
+        try {
+            Context context = getApplicationContext();
+            if (!MessageClassifier.isEnabled(context))
+                return Result.success();
+
+            DB db = DB.getInstance(context);
+
+            Map<Long, List<EntityFolder>> accountFolders = new HashMap<>();
+            for (EntityFolder folder : db.folder().getFolders())
+                if (folder.auto_classify_source) {
+                    List<EntityFolder> folders = accountFolders.get(folder.account);
+                    if (folders == null) {
+                        folders = new ArrayList<>();
+                        accountFolders.put(folder.account, folders);
+                    }
+                    folders.add(folder);
+                }
+
+            Map<Long, List<Long>> folderIds = new HashMap<>();
+            int total = 0;
+            for (List<EntityFolder> folders : accountFolders.values())
+                for (EntityFolder folder : folders) {
+                    List<Long> ids = db.message().getMessageByFolder(folder.id);
+                    folderIds.put(folder.id, ids);
+                    total += ids.size();
+                }
+
+            Log.i("Classifier train accounts=" + accountFolders.size() + " messages=" + total);
+
+            int trained = 0;
+            long start = new Date().getTime();
+            for (Long account : accountFolders.keySet()) {
+                // Tokenize batches in parallel, each into its own table,
+                // and merge the tables in order while the next batches are being processed
+                MessageClassifier.Table table = new MessageClassifier.Table();
+                List<Future<MessageClassifier.Table>> futures = new ArrayList<>();
+                for (EntityFolder folder : accountFolders.get(account)) {
+                    List<Long> ids = folderIds.get(folder.id);
+                    for (int i = 0; i < ids.size(); i += TRAIN_BATCH_SIZE) {
+                        if (isStopped() || !MessageClassifier.isEnabled(context))
+                            break;
+
+                        futures.add(train(context, folder.name,
+                                ids.subList(i, Math.min(ids.size(), i + TRAIN_BATCH_SIZE))));
+
+                        while (futures.size() > 2 * THREADS) {
+                            trained += merge(table, futures.remove(0));
+                            report(trained, total, start);
+                        }
+                    }
+                }
+
+                while (futures.size() > 0) {
+                    trained += merge(table, futures.remove(0));
+                    report(trained, total, start);
+                }
+
+                // Keep the current model when cancelled or disabled
+                if (isStopped() || !MessageClassifier.isEnabled(context))
+                    break;
+
+                Log.i("Classifier train account=" + account + " messages=" + table.getMessages());
+                MessageClassifier.retrain(context, account, table);
+            }
+
+            long elapsed = new Date().getTime() - start;
+            EntityLog.log(context, EntityLog.Type.Classification,
+                    "Classifier trained=" + trained + "/" + total +
+                            " rate=" + (throughput == null ? null : Math.round(throughput)) + " msg/s" +
+                            " stopped=" + isStopped() +
+                            " elapsed=" + elapsed + " ms");
+
+            return Result.success();
+        } catch (Throwable ex) {
+            Log.e(ex);
+            return Result.failure();
+        }
+    }
+
+    private static Future<MessageClassifier.Table> train(Context context, String clazz, List<Long> ids) {
+        return executor.submit(new Callable<MessageClassifier.Table>() {
+            @Override
+            public MessageClassifier.Table call() {
+                MessageClassifier.Table table = new MessageClassifier.Table();
+                DB db = DB.getInstance(context);
+                for (EntityMessage message : db.message().getMessagesByIds(ids))
+                    try {
+                        if (!message.content)
+                            continue;
+                        List<String> words = MessageClassifier.getWords(message, context);
+                        if (words != null)
+                            table.add(clazz, words);
+                    } catch (Throwable ex) {
+                        Log.w(ex);
+                    }
+                return table;
+            }
+        });
+    }
+
+    private static int merge(MessageClassifier.Table table, Future<MessageClassifier.Table> future) {
+        try {
+            MessageClassifier.Table partial = future.get();
+            table.addAll(partial);
+            return partial.getMessages();
+        } catch (Throwable ex) {
+            Log.e(ex);
+            return 0;
+        }
+    }
+
+    private void report(int trained, int total, long start) {
+        long elapsed = new Date().getTime() - start;
+        if (elapsed > 0)
+            throughput = trained * 1000f / elapsed;
+        setProgressAsync(new Data.Builder()
+                .putInt("trained", trained)
+                .putInt("total", total)
+                .putFloat("throughput", throughput == null ? 0 : throughput)
+                .build());
+        Log.i("Classifier trained=" + trained + "/" + total +
+                " rate=" + (throughput == null ? null : Math.round(throughput)) + " msg/s");
+    }
+
+    static void init(Context context) {
+        try {
+            Log.i("Queuing " + getName());
+
+            OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(WorkerClassifier.class).build();
+            WorkManager.getInstance(context)
+                    .enqueueUniqueWork(getName(), ExistingWorkPolicy.KEEP, workRequest);
+
+            Log.i("Queued " + getName());
+        } catch (IllegalStateException ex) {
+            // https://issuetracker.google.com/issues/138465476
+            Log.w(ex);
+        }
+    }
+
+    static void cancel(Context context) {
+        try {
+            Log.i("Cancelling " + getName());
+            WorkManager.getInstance(context).cancelUniqueWork(getName());
+            Log.i("Cancelled " + getName());
+        } catch (IllegalStateException ex) {
+            Log.w(ex);
+        }
+    }
+
+    private static String getName() {
+        return WorkerClassifier.class.getSimpleName();
+    }
+}
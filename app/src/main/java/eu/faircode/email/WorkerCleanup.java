@@ -53,6 +53,7 @@ public class WorkerCleanup extends Worker {
     private static final long KEEP_IMAGES_DURATION = 3 * 24 * 3600 * 1000L; // milliseconds
     private static final long KEEP_CONTACTS_DURATION = 365 * 24 * 3600 * 1000L; // milliseconds
     private static final int KEEP_CONTACTS_COUNT = 10000;
+    private static final int TEXT_BACKFILL_COUNT = 500;
 
     private static Semaphore semaphore = new Semaphore(1);
 
@@ -325,6 +326,43 @@ public class WorkerCleanup extends Worker {
                             Log.w("Error deleting " + file);
                     }
 
+            // Cleanup text files
+            Log.i("Cleanup text files");
+            String suffix = "." + HtmlHelper.TEXT_VERSION + ".txt";
+            File[] texts = new File(context.getFilesDir(), "text").listFiles();
+            if (texts != null)
+                for (File file : texts)
+                    if (manual || file.lastModified() + KEEP_FILES_DURATION < now)
+                        try {
+                            long id = Long.parseLong(file.getName().split("\\.")[0]);
+                            EntityMessage message = db.message().getMessage(id);
+                            if (message == null || !message.content ||
+                                    !file.getName().endsWith(suffix)) {
+                                Log.i("Deleting " + file);
+                                if (!file.delete())
+                                    Log.w("Error deleting " + file);
+                            }
+                        } catch (NumberFormatException ex) {
+                            Log.e(file.getAbsolutePath(), ex);
+                            file.delete();
+                        }
+
+            // Extract the text of existing messages, a limited number at a time
+            int extracted = 0;
+            try (Cursor cursor = db.message().getMessageIdsWithContentCursor()) {
+                while (extracted < TEXT_BACKFILL_COUNT && cursor != null && cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    if (!EntityMessage.getTextFile(context, id).exists())
+                        try {
+                            HtmlHelper.getFullText(context, id);
+                            extracted++;
+                        } catch (Throwable ex) {
+                            Log.w(ex);
+                        }
+                }
+            }
+            Log.i("Cleanup text extracted=" + extracted);
+
             // Cleanup contact info
             if (manual)
                 ContactInfo.clearCache(context);
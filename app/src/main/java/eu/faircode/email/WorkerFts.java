@@ -24,6 +24,7 @@ import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
@@ -34,15 +35,39 @@ import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
 import io.requery.android.database.sqlite.SQLiteDatabase;
 
 public class WorkerFts extends Worker {
     private static final int INDEX_DELAY = 30; // seconds
-    private static final int INDEX_BATCH_SIZE = 100;
+    private static final int INDEX_BATCH_SIZE = 200;
+    private static final long INDEX_BATCH_CHARS = 4 * 1024 * 1024L; // estimated text per batch
+
+    private static final int MAX_ATTACHMENT_SIZE = 256 * 1024; // bytes
+    private static final int MAX_ATTACHMENT_TEXT = 256 * 1024; // characters
+
+    private static volatile Float throughput = null; // messages/second
+
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(Runtime.getRuntime().availableProcessors(), false, "fts");
 
     public WorkerFts(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -60,61 +85,73 @@ public class WorkerFts extends Worker {
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             boolean checkpoints = prefs.getBoolean("sqlite_checkpoints", true);
+            boolean trigram = prefs.getBoolean("fts_trigram", false);
 
             int indexed = 0;
-            List<Long> ids = new ArrayList<>(INDEX_BATCH_SIZE);
+            long start = new Date().getTime();
+            List<Long> pending = new ArrayList<>();
+            List<Future<Extracted>> futures = new ArrayList<>();
+            Set<String> words = (SearchSuggestions.hasTerms() ? new HashSet<String>() : null);
             DB db = DB.getInstance(context);
 
             SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
 
+            // Read ids in batches, extract the text of a batch in parallel
+            // while the previous batch is being written in a single transaction
             try (Cursor cursor = db.message().getMessageFts()) {
-                while (cursor != null && cursor.moveToNext())
-                    try {
-                        long id = cursor.getLong(0);
-                        Log.i("FTS index=" + id);
-
-                        ids.add(id);
-
-                        EntityMessage message = db.message().getMessage(id);
-                        if (message == null) {
-                            Log.i("FTS gone");
-                            continue;
-                        }
-
-                        File file = message.getFile(context);
-                        String text = HtmlHelper.getFullText(file);
-                        if (text == null)
-                            text = "";
+                boolean more = true;
+                while (more || !pending.isEmpty()) {
+                    // Limit the memory of the texts of a batch, two batches are in flight
+                    long chars = 0;
+                    List<Long> batch = new ArrayList<>(INDEX_BATCH_SIZE);
+                    while (more && batch.size() < INDEX_BATCH_SIZE && chars < INDEX_BATCH_CHARS)
+                        if (cursor != null && cursor.moveToNext()) {
+                            long id = cursor.getLong(0);
+                            batch.add(id);
+                            chars += getTextSize(context, id, cursor.getInt(1) > 0);
+                        } else
+                            more = false;
+
+                    List<Future<Extracted>> extracting = new ArrayList<>();
+                    if (!batch.isEmpty()) {
+                        Log.i("FTS read=" + batch.size());
+                        for (EntityMessage message : db.message().getMessagesByIds(batch))
+                            extracting.add(extract(context, message));
+                    }
 
+                    if (!pending.isEmpty()) {
                         boolean fts = prefs.getBoolean("fts", false);
-                        if (!fts)
+                        if (!fts) {
+                            for (Future<Extracted> future : extracting)
+                                future.cancel(false);
                             break;
-
-                        try {
-                            sdb.beginTransaction();
-                            FtsDbHelper.insert(sdb, message, text);
-                            sdb.setTransactionSuccessful();
-                        } finally {
-                            sdb.endTransaction();
                         }
 
-                        indexed++;
-
-                        if (ids.size() >= INDEX_BATCH_SIZE)
-                            markIndexed(db, ids);
-                    } catch (Throwable ex) {
-                        Log.e(ex);
+                        indexed += write(sdb, futures, trigram, words);
+                        markIndexed(db, pending);
+                        report(indexed, start, cursor);
                     }
+
+                    pending = batch;
+                    futures = extracting;
+                }
             }
 
-            markIndexed(db, ids);
+            if (words != null)
+                SearchSuggestions.addTerms(words);
+
+            long saved = FtsDbHelper.getSaved(sdb);
+            prefs.edit().putLong("fts_saved", saved).apply();
+            Log.i("FTS saved=" + saved);
 
             if (checkpoints) {
                 DB.checkpoint(context);
                 Helper.sync();
             }
 
-            Log.i("FTS indexed=" + indexed);
+            throughput = null;
+            Log.i("FTS indexed=" + indexed +
+                    " elapsed=" + (new Date().getTime() - start) + " ms");
             return Result.success();
         } catch (Throwable ex) {
             Log.e(ex);
@@ -122,6 +159,152 @@ public class WorkerFts extends Worker {
         }
     }
 
+    private static long getTextSize(Context context, long id, boolean attachments) {
+        // Upper bound: the text is at most as long as the stored text or message file
+        File tfile = EntityMessage.getTextFile(context, id);
+        long size = (tfile.exists() ? tfile.length() : EntityMessage.getFile(context, id).length());
+        size = Math.min(size, HtmlHelper.MAX_FULL_TEXT_SIZE);
+        if (attachments)
+            size += MAX_ATTACHMENT_TEXT;
+        return size;
+    }
+
+    private static Future<Extracted> extract(Context context, EntityMessage message) {
+        return executor.submit(new Callable<Extracted>() {
+            @Override
+            public Extracted call() {
+                Extracted result = new Extracted(message);
+                try {
+                    result.text = HtmlHelper.getFullText(context, message.id);
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                }
+                if (message.attachments > 0)
+                    try {
+                        result.attachment = getAttachmentText(context, message.id);
+                    } catch (Throwable ex) {
+                        Log.e(ex);
+                    }
+                return result;
+            }
+        });
+    }
+
+    private static String getAttachmentText(Context context, long id) {
+        StringBuilder sb = new StringBuilder();
+
+        DB db = DB.getInstance(context);
+        List<EntityAttachment> attachments = db.attachment().getAttachments(id);
+        for (EntityAttachment attachment : attachments) {
+            if (!attachment.available || attachment.isEncryption() || attachment.isInline())
+                continue;
+            if (sb.length() >= MAX_ATTACHMENT_TEXT)
+                break;
+
+            String type = attachment.getMimeType();
+            File file = attachment.getFile(context);
+            if (!file.exists())
+                continue;
+
+            try {
+                String text = null;
+                if ("message/rfc822".equals(type)) {
+                    if (file.length() > MAX_ATTACHMENT_SIZE)
+                        continue;
+                    try (InputStream is = new FileInputStream(file)) {
+                        Properties props = MessageHelper.getSessionProperties();
+                        Session isession = Session.getInstance(props, null);
+                        MimeMessage imessage = new MimeMessage(isession, is);
+                        MessageHelper helper = new MessageHelper(imessage, context);
+                        String html = helper.getMessageParts().getHtml(context);
+                        text = HtmlHelper.getFullText(html);
+                    }
+                } else if ("text/html".equals(type))
+                    text = HtmlHelper.getFullText(readText(file));
+                else if (type.startsWith("text/"))
+                    // text/plain, text/calendar, text/vcard, text/csv, etc
+                    text = readText(file);
+
+                if (!TextUtils.isEmpty(text)) {
+                    if (sb.length() > 0)
+                        sb.append('\n');
+                    sb.append(text, 0, Math.min(text.length(), MAX_ATTACHMENT_TEXT - sb.length()));
+                }
+            } catch (Throwable ex) {
+                Log.w(ex);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static String readText(File file) throws IOException {
+        // Read the start of the file only
+        byte[] buffer = new byte[(int) Math.min(file.length(), MAX_ATTACHMENT_SIZE)];
+        try (InputStream is = new FileInputStream(file)) {
+            Helper.readBuffer(is, buffer);
+        }
+
+        // Attachments rarely declare a charset
+        Charset charset = CharsetHelper.detect(
+                new String(buffer, StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        if (charset == null)
+            charset = StandardCharsets.UTF_8;
+        return new String(buffer, charset);
+    }
+
+    private static class Extracted {
+        private final EntityMessage message;
+        private String text;
+        private String attachment;
+
+        Extracted(EntityMessage message) {
+            this.message = message;
+        }
+    }
+
+    private static int write(SQLiteDatabase sdb, List<Future<Extracted>> futures, boolean trigram, Set<String> words) {
+        int count = 0;
+        try {
+            sdb.beginTransaction();
+            for (Future<Extracted> future : futures)
+                try {
+                    Extracted result = future.get();
+                    Log.i("FTS index=" + result.message.id);
+                    FtsDbHelper.insert(sdb, result.message,
+                            result.text == null ? "" : result.text,
+                            result.attachment == null ? "" : result.attachment,
+                            trigram);
+                    count++;
+
+                    if (words != null) {
+                        SearchSuggestions.addWords(result.message.subject, words, SearchSuggestions.MAX_ADDED);
+                        SearchSuggestions.addWords(result.text, words, SearchSuggestions.MAX_ADDED);
+                        SearchSuggestions.addWords(result.attachment, words, SearchSuggestions.MAX_ADDED);
+                    }
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                }
+            sdb.setTransactionSuccessful();
+        } finally {
+            sdb.endTransaction();
+        }
+        return count;
+    }
+
+    private static void report(int indexed, long start, Cursor cursor) {
+        long elapsed = new Date().getTime() - start;
+        if (elapsed > 0)
+            throughput = indexed * 1000f / elapsed;
+        Log.i("FTS indexed=" + indexed +
+                " rate=" + (throughput == null ? null : Math.round(throughput)) + " msg/s" +
+                " backlog=" + (cursor == null ? null : cursor.getCount() - cursor.getPosition() - 1));
+    }
+
+    static Float getThroughput() {
+        return throughput;
+    }
+
     private void markIndexed(DB db, List<Long> ids) {
         try {
             db.beginTransaction();